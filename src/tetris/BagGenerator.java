@@ -0,0 +1,126 @@
+package tetris;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import tetris.Piece.Tetris;
+
+/**
+ * 7-bag generator. Deals all seven shapes in a shuffled order before
+ * shuffling again, so no shape is ever more than 12 pieces away.
+ */
+public class BagGenerator implements PieceGenerator {
+
+    /** all shapes, emptyPiece is index 0 */
+    private static final Tetris[] shapes = Tetris.values();
+
+    /** source of random numbers */
+    private final SplitMix random;
+
+    /** shape ordinals in dealing order */
+    private final int[] bag = {1, 2, 3, 4, 5, 6, 7};
+
+    /** next position to deal from, the bag is reshuffled when it reaches the end */
+    private int position;
+
+    /**
+     * Creates a generator
+     * @param seed starting state of the random numbers
+     */
+    public BagGenerator(long seed) {
+        random = new SplitMix(seed);
+        position = bag.length;
+    }
+
+    @Override
+    public Tetris next() {
+        if (position == bag.length) {
+
+            // shuffle in place so dealing never allocates
+            for (int i = bag.length - 1; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                int t = bag[i];
+                bag[i] = bag[j];
+                bag[j] = t;
+            }
+            position = 0;
+        }
+        return shapes[bag[position++]];
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(random.getState());
+        for (int shape : bag) {
+            out.writeByte(shape);
+        }
+        out.writeByte(position);
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException {
+        long state = in.readLong();
+
+        // same layout as saveState, so one check covers both
+        long packed = 0;
+        int any = 0;
+        for (int i = 0; i <= bag.length; ++i) {
+            int b = in.readUnsignedByte();
+            any |= b;
+            packed |= (long) (b & 15) << 4 * i;
+        }
+        if (any > 15 || !isValid(packed)) {
+            throw new IOException("Bad game state");
+        }
+        unpack(state, packed);
+    }
+
+    @Override
+    public void saveState(long[] dst, int offset) {
+
+        // four bits per shape, then the position
+        long packed = position;
+        for (int i = bag.length - 1; i >= 0; --i) {
+            packed = packed << 4 | bag[i];
+        }
+        dst[offset] = random.getState();
+        dst[offset + 1] = packed;
+    }
+
+    @Override
+    public void loadState(long[] src, int offset) {
+        if (!isValid(src[offset + 1])) {
+            throw new IllegalArgumentException("Bad generator state");
+        }
+        unpack(src[offset], src[offset + 1]);
+    }
+
+    /**
+     * Checks that a packed state holds every shape once and a position
+     * inside the bag
+     * @param packed four bits per shape, then the position
+     * @return boolean
+     */
+    private static boolean isValid(long packed) {
+        int seen = 0;
+        for (int i = 0; i < 7; ++i) {
+            seen |= 1 << (int) (packed >>> 4 * i & 15);
+        }
+        return seen == 0xFE && packed >>> 28 <= 7;
+    }
+
+    /**
+     * Sets the whole state from a checked packed state
+     * @param state random number state
+     * @param packed four bits per shape, then the position
+     */
+    private void unpack(long state, long packed) {
+        random.setState(state);
+        for (int i = 0; i < bag.length; ++i) {
+            bag[i] = (int) (packed & 15);
+            packed >>>= 4;
+        }
+        position = (int) packed;
+    }
+}
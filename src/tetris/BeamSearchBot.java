@@ -0,0 +1,314 @@
+package tetris;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Autoplay bot that looks ahead at the pieces coming next. The falling
+ * piece and each previewed piece are placed in turn, keeping only the best
+ * boards at each depth, and the first move towards the best board found at
+ * the deepest level is played. Different orders of placements often build
+ * the same board, so boards are remembered in a transposition table and a
+ * board already reached is not searched again. The nodes of each depth are
+ * expanded across a fork join pool.
+ */
+public class BeamSearchBot extends Bot {
+
+    /** most beam nodes expanded by one task before it is split */
+    private static final int leafSize = 2;
+
+    /** pieces placed along each line of search, the falling one included */
+    private final int depth;
+
+    /** boards kept at each depth */
+    private final int beamWidth;
+
+    /** boards reached in the current and earlier searches */
+    private final TranspositionTable table;
+
+    /** shapes of the pieces after the falling one */
+    private final Tetris[] preview;
+
+    /** number of the current search, boards of older ones are stale */
+    private int search = 0;
+
+    /** boards scored */
+    private final LongAdder nodes = new LongAdder();
+
+    /** time spent in best */
+    private long searchNanos = 0;
+
+    /**
+     * A board reached by placing some pieces
+     */
+    private static class Node {
+
+        /** occupied cells, only the rows the search can reach, see Bot.reach */
+        final long[] rows;
+
+        /** rows at or above this one are empty */
+        final int stackHeight;
+
+        /** Engine.boardHash of the rows */
+        final long hash;
+
+        /** lines cleared on the way here */
+        final int lines;
+
+        /** heuristic score of the board */
+        final double score;
+
+        /** placement of the falling piece this line of search started with */
+        final Placement first;
+
+        Node(long[] rows, int stackHeight, long hash, int lines, double score, Placement first) {
+            this.rows = rows;
+            this.stackHeight = stackHeight;
+            this.hash = hash;
+            this.lines = lines;
+            this.score = score;
+            this.first = first;
+        }
+    }
+
+    /**
+     * Creates a bot
+     * @param heuristic scores boards after a placement
+     * @param pool pool used for expanding, null to search on the calling thread
+     * @param depth pieces to place along each line, 1 plays like Bot
+     * @param beamWidth boards kept at each depth
+     * @param tableSize most boards remembered
+     */
+    public BeamSearchBot(Heuristic heuristic, ForkJoinPool pool, int depth, int beamWidth, int tableSize) {
+        super(heuristic, pool);
+        if (depth < 1 || beamWidth < 1) {
+            throw new IllegalArgumentException("depth and beam width must be positive");
+        }
+        this.depth = depth;
+        this.beamWidth = beamWidth;
+        table = new TranspositionTable(tableSize);
+        preview = new Tetris[depth - 1];
+    }
+
+    /**
+     * Finds the first move of the best line of placements
+     * @param engine game to look at, not changed while this runs
+     * @return Placement placement of the falling piece, scored with the
+     * best board it leads to, or null if there is no piece
+     */
+    @Override
+    public Placement best(Engine engine) {
+        if (engine.getCurPiece().getPiece() == Tetris.emptyPiece) {
+            return null;
+        }
+        long start = System.nanoTime();
+        int width = engine.getWidth();
+        int height = engine.getHeight();
+        engine.preview(preview);
+        ++search;
+
+        int stackHeight = engine.getStackHeight();
+        long[] rows = new long[reach(stackHeight, height)];
+        engine.copyRows(rows);
+        List<Node> beam = new ArrayList<>();
+        beam.add(new Node(rows, stackHeight, Engine.boardHash(rows, stackHeight), 0, 0, null));
+
+        for (int d = 0; d < depth; ++d) {
+            Piece p = d == 0 ? engine.getCurPiece() : Piece.of(preview[d - 1]);
+            int x = d == 0 ? engine.getCurX() : Engine.spawnX(width);
+            int y = d == 0 ? engine.getCurY() : Engine.spawnY(p, height);
+            Expand expand = new Expand(beam, 0, beam.size(), d, p, x, y, width, height);
+            List<Node> children = pool == null ? expand.compute() : pool.invoke(expand);
+
+            // every line of search topped out, play towards the best so far
+            if (children.isEmpty()) {
+                break;
+            }
+            children.sort((a, b) -> Double.compare(b.score, a.score));
+            beam = children.size() > beamWidth ? children.subList(0, beamWidth) : children;
+        }
+
+        searchNanos += System.nanoTime() - start;
+        Node best = Collections.max(beam, (a, b) -> Double.compare(a.score, b.score));
+        return best.first == null ? null : best.first.withScore(best.score);
+    }
+
+    /**
+     * Getter for boards scored by every search so far
+     * @return long nodes
+     */
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    /**
+     * Boards scored per second spent searching
+     * @return double nodes per second
+     */
+    public double getNodesPerSecond() {
+        return nodes.sum() / Math.max(1e-9, searchNanos / 1e9);
+    }
+
+    /**
+     * Getter for time spent searching
+     * @return long nanoseconds
+     */
+    public long getSearchNanos() {
+        return searchNanos;
+    }
+
+    /**
+     * Getter for the table of boards reached
+     * @return TranspositionTable table, its hit rate is the share of
+     * boards found already searched
+     */
+    public TranspositionTable getTable() {
+        return table;
+    }
+
+    /**
+     * Places one piece every way it fits on a range of beam nodes,
+     * splitting large ranges in half
+     */
+    private class Expand extends RecursiveTask<List<Node>> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** boards of the previous depth, only read */
+        private final List<Node> beam;
+
+        /** range of this task */
+        private final int from, to;
+
+        /** depth of the piece being placed */
+        private final int d;
+
+        /** piece being placed and where it starts */
+        private final Piece piece;
+        private final int x, y;
+
+        /** board size */
+        private final int width, height;
+
+        Expand(List<Node> beam, int from, int to, int d, Piece piece, int x, int y, int width, int height) {
+            this.beam = beam;
+            this.from = from;
+            this.to = to;
+            this.d = d;
+            this.piece = piece;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        protected List<Node> compute() {
+            if (pool != null && to - from > leafSize) {
+                int mid = (from + to) >>> 1;
+                Expand left = new Expand(beam, from, mid, d, piece, x, y, width, height);
+                Expand right = new Expand(beam, mid, to, d, piece, x, y, width, height);
+                left.fork();
+                List<Node> b = right.compute();
+                List<Node> a = left.join();
+                a.addAll(b);
+                return a;
+            }
+
+            List<Node> children = new ArrayList<>();
+            int[] heights = new int[width];
+            long depthKey = SplitMix.mix(d + 1);
+            int scored = 0;
+            for (int n = from; n < to; ++n) {
+                Node node = beam.get(n);
+                for (Placement p : Bot.placements(node.rows, node.stackHeight, width, height, piece, x, y)) {
+                    Piece s = p.getPiece();
+                    int top = p.getY() - s.minY();
+                    long[] rows = new long[reach(node.stackHeight, height)];
+                    System.arraycopy(node.rows, 0, rows, 0, node.stackHeight);
+                    int lines = Bot.land(rows, node.stackHeight, width, s, p.getX(), p.getY());
+                    int stackHeight = Math.max(node.stackHeight, top + 1) - lines;
+
+                    // without a clear only the piece's own cells change
+                    long hash = node.hash;
+                    if (lines == 0) {
+                        int shift = p.getX() + s.minX();
+                        for (int j = 0; j < s.maskRows(); ++j) {
+                            hash ^= Engine.rowHash(top - j, s.rowMask(j) << shift);
+                        }
+                    } else {
+                        hash = Engine.boardHash(rows, stackHeight);
+                    }
+
+                    double score = heuristic.score(rows, stackHeight, width, node.lines + lines, heights);
+                    ++scored;
+                    if (table.offer(hash ^ depthKey, score, search)) {
+                        children.add(new Node(rows, stackHeight, hash, node.lines + lines, score,
+                                node.first == null ? p : node.first));
+                    }
+                }
+            }
+            nodes.add(scored);
+            return children;
+        }
+    }
+
+    /**
+     * Plays seeded games with the one piece bot and with beam searches of
+     * growing depth, and reports how far each gets and how fast it searches
+     * @param args games, most pieces per game, beam width, thread count
+     */
+    public static void main(String[] args) {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int maxPieces = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int width = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Heuristic heuristic = new Heuristic();
+
+        for (int depth = 1; depth <= 3; ++depth) {
+            long pieces = 0;
+            long lines = 0;
+            long nodes = 0;
+            long probes = 0;
+            long hits = 0;
+            long nanos = 0;
+            int survived = 0;
+            for (int g = 0; g < games; ++g) {
+                Engine engine = new Engine(PieceGenerator.create("uniform", g + 1));
+                Bot bot = depth == 1 ? new Bot(heuristic, null)
+                        : new BeamSearchBot(heuristic, pool, depth, width, 1 << 16);
+                engine.start();
+                long start = System.nanoTime();
+                while (!engine.isOver() && engine.getPieces() < maxPieces) {
+                    if (engine.getCurPiece().getPiece() == Tetris.emptyPiece) {
+                        engine.step(Engine.Input.tick);
+                    } else {
+                        bot.play(engine);
+                    }
+                }
+                nanos += System.nanoTime() - start;
+                pieces += engine.getPieces();
+                lines += engine.getScore();
+                survived += engine.isOver() ? 0 : 1;
+                if (bot instanceof BeamSearchBot) {
+                    BeamSearchBot beam = (BeamSearchBot) bot;
+                    nodes += beam.getNodes();
+                    probes += beam.getTable().getProbes();
+                    hits += beam.getTable().getHits();
+                }
+            }
+            System.out.printf("depth=%d beam=%d lines/game=%.1f survived=%d/%d time/piece=%.3fms"
+                            + " nodes/s=%.0f tableHits=%.1f%%%n", depth, depth == 1 ? 1 : width,
+                    (double) lines / games, survived, games, nanos / 1e6 / Math.max(1, pieces),
+                    nodes / Math.max(1e-9, nanos / 1e9), 100.0 * hits / Math.max(1, probes));
+        }
+        pool.shutdown();
+    }
+}
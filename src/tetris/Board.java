@@ -2,87 +2,254 @@ package tetris;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.Graphics;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.awt.Rectangle;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import javax.swing.*;
 
 import tetris.Piece.Tetris;
 
-public class Board extends JPanel implements ActionListener {
+public class Board extends JPanel implements GameLoop.Listener {
 
-    /** width of game board */
-    private static final int bWidth = 10;
+    /** size of new games, set with -Dtetris.width and -Dtetris.height */
+    private static final int newWidth = Integer.getInteger("tetris.width", Engine.bWidth);
+    private static final int newHeight = Integer.getInteger("tetris.height", Engine.bHeight);
 
-    /** height of game board */
-    private static final int bHeight = 22;
+    /** most rows shown at once, set with -Dtetris.viewRows */
+    private static final int maxViewRows = Math.max(4, Integer.getInteger("tetris.viewRows", Engine.bHeight));
 
-    /** timer used to regulate drop speeds */
-    private Timer timer;
+    /** most frames drawn per second */
+    private static final int maxFps = 60;
 
-    /** used to know when to get next piece */
-    private boolean atBottom = false;
+    /** ticks between keyframes in recorded replays */
+    private static final int keyframeTicks = 100;
 
-    /** used to know when game is started */
-    private boolean started = false;
+    /** ticks skipped by one seek while watching a replay */
+    private static final int seekTicks = 50;
+
+    /** kinds of player input with their own latency histogram */
+    private enum Action {move, rotate, hardDrop}
+
+    /** keys the player holds, in the order they are queued */
+    private enum Control {
+        left(Engine.Input.left, Action.move),
+        right(Engine.Input.right, Action.move),
+        rotateLeft(Engine.Input.rotateLeft, Action.rotate),
+        rotateRight(Engine.Input.rotateRight, Action.rotate),
+        softDrop(Engine.Input.softDrop, Action.move),
+        hardDrop(Engine.Input.hardDrop, Action.hardDrop);
+
+        /** move passed to the engine */
+        final Engine.Input input;
+
+        /** latency histogram the move is timed in */
+        final Action action;
+
+        Control(Engine.Input input, Action action) {
+            this.input = input;
+            this.action = action;
+        }
+    }
+
+    /** controls by their number in the input queue */
+    private static final Control[] controls = Control.values();
+
+    /** actions by the number of their latency histogram */
+    private static final Action[] actions = Action.values();
+
+    /** number in the input queue after the controls, lets go of every key */
+    private static final int releaseKeys = controls.length;
+
+    /** time before a held key starts repeating, set with -Dtetris.das */
+    private static final long dasNanos = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("tetris.das", 170));
+
+    /** time between repeats of a held key, set with -Dtetris.arr */
+    private static final long arrNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Integer.getInteger("tetris.arr", 50)));
+
+    /** most repeats of one key applied in one pass of the loop, enough to cross the widest board */
+    private static final int maxRepeats = 64;
+
+    /** size of the latency overlay in pixels */
+    private static final int overlayWidth = 330;
+    private static final int overlayHeight = 64;
+
+    /** see through background and font of the latency overlay */
+    private static final Color overlayBackground = new Color(0, 0, 0, 160);
+    private static final Font overlayFont = new Font(Font.MONOSPACED, Font.PLAIN, 11);
+
+    /** fixed step loop used to regulate drop speeds and drawing */
+    private final GameLoop loop;
+
+    /** speed of timer */
+    private final int speed;
+
+    /** size of game board */
+    private final int bWidth;
+    private final int bHeight;
+
+    /** rows shown at once, the whole board unless it is taller than maxViewRows */
+    private final int viewRows;
+
+    /** lowest row shown, moved to follow the falling piece */
+    private int viewBottom = 0;
+
+    /** pixels the falling piece is drawn below its row while it falls */
+    private int dropOffset = 0;
+
+    /** ghost piece last asked to be painted, showing where the falling piece lands */
+    private Piece ghostPiece = Piece.of(Tetris.emptyPiece);
+    private int ghostX, ghostY;
+
+    /** used to show game over only once */
+    private boolean ended = false;
+
+    /** plays the game when autoplay is on, otherwise null */
+    private final Bot bot;
 
     /** used to know if game is paused */
     private boolean paused = false;
 
-    /** number of lines cleared */
-    private int score = 0;
-
-    /** current position of falling piece */
-    private int curX = 0;
-    private int curY = 0;
+    /** score last shown in the score bar */
+    private int shownScore = 0;
 
     /** bar to show score/game message */
     private final JLabel scorebar;
 
-    /** current tetromino shape */
-    private Piece curPiece;
+    /** game rules and board state */
+    private final Engine engine;
 
-    /** game board */
-    private final Tetris[] board;
-
-    /** high scores array **/
-    private String[][] highScores = new String[10][2];
+    /** high scores table, shared with other games **/
+    private final Leaderboard leaderboard;
 
     /** current player name */
     private String playerName;
 
-    /** color selector */
-    private int color;
+    /** cached cell images for the selected colors */
+    private final Theme theme;
 
     /** multiplier for score */
     private double scoreMultiplier;
 
+    /** seed of the piece generator, saved in the replay */
+    private final long seed;
+
+    /** records the game being played, null when watching a replay */
+    private ReplayRecorder recorder;
+
+    /** replay being watched, otherwise null */
+    private final ReplayPlayer replay;
+
+    /** writes scores and replays in the background */
+    private final Storage storage;
+
+    /** time from key press to the frame showing it, by action */
+    private final LatencyHistogram[] latency = new LatencyHistogram[Action.values().length];
+
+    /** overlay line of each action, built again only when its histogram gets a sample, EDT only */
+    private final String[] overlayLines = new String[Action.values().length];
+
+    /** samples in each histogram when its overlay line was built, EDT only */
+    private final long[] overlayCounts = new long[Action.values().length];
+
+    /** when the oldest key press not yet sent to be painted arrived, by action, 0 for none, loop thread only */
+    private final long[] pressedAt = new long[Action.values().length];
+
+    /**
+     * when the oldest key press waiting to be painted arrived, by action,
+     * 0 for none, guarded by the engine lock
+     */
+    private final long[] shownAt = new long[Action.values().length];
+
+    /** area a paint has to cover to show each waiting key press, guarded by the engine lock */
+    private final Rectangle[] shownArea = new Rectangle[Action.values().length];
+
+    /** key presses shown by the paint running now, event thread only */
+    private final long[] paintedAt = new long[Action.values().length];
+
+    /** key events from the event thread to the loop thread */
+    private final InputQueue queue = new InputQueue(256);
+
+    /** repeats of a held left or right arrow, only used on the loop thread */
+    private final KeyRepeat shift = new KeyRepeat(2, dasNanos, arrNanos);
+
+    /** repeats of a held soft drop, which starts repeating right away */
+    private final KeyRepeat drop = new KeyRepeat(1, arrNanos, arrNanos);
+
+    /** keys held that act once per press, by control */
+    private final boolean[] held = new boolean[controls.length];
+
+    /** when the game last came out of pause, presses made before are dropped */
+    private volatile long resumedAt = Long.MIN_VALUE;
+
+    /** set when letting go of every key didn't fit in a full input queue */
+    private volatile boolean releasePending = false;
+
+    /** used to show the latency overlay */
+    private boolean showOverlay = false;
+
+    /** time spent in paint */
+    private final TimingStats paintTimes = new TimingStats();
+
+    /** published over JMX while this game runs */
+    private final Metrics metrics;
+
     /**
      * Default constructor. Sets up game
      * @param parent game object
      */
     public Board(Game parent) {
+        this(parent, null);
+    }
+
+    /**
+     * Sets up a board that plays back a replay at its recorded speed
+     * @param parent game object
+     * @param replay replay to watch, null to play a new game
+     */
+    public Board(Game parent, ReplayPlayer replay) {
         setFocusable(true);
-        curPiece = new Piece();
-        timer = new Timer(parent.getSpeed(), this);
-        color = parent.getColorNum();
-        highScores = parent.getScores();
+        this.replay = replay;
+        seed = System.nanoTime();
+        engine = replay != null ? replay.getEngine() : new Engine(newWidth, newHeight, new UniformGenerator(seed));
+        bWidth = engine.getWidth();
+        bHeight = engine.getHeight();
+        viewRows = Math.min(bHeight, maxViewRows);
+        speed = replay != null ? replay.getTickMillis() : parent.getSpeed();
+        loop = new GameLoop(this, speed, maxFps);
+        theme = new Theme(parent.getColorNum());
+        bot = parent.getAutoplay() && replay == null ? new Bot(new Heuristic(), ForkJoinPool.commonPool()) : null;
+        leaderboard = parent.getLeaderboard();
+        storage = parent.getStorage();
         playerName = parent.getPlayerName();
-        timer.start();
         scorebar = parent.getStatusBar();
-        board = new Tetris[bWidth * bHeight];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+        metrics = new Metrics(engine, loop, paintTimes);
         addKeyListener(new TAdapter());
-        clear();
+        addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusLost(FocusEvent e) {
+
+                // key releases are not seen once focus is gone
+                releaseAll();
+            }
+        });
     }
 
     /**
      * Change score multiplier based on timer speed
      */
     private void changeScoreMultiplier() {
-        int timerSpeed = timer.getDelay();
+        int timerSpeed = speed;
 
         // set score multiplier
         if (timerSpeed == 100) {
@@ -109,17 +276,18 @@ public class Board extends JPanel implements ActionListener {
      * @return int height of square
      */
     private int sqHeight() {
-        return (int) getSize().getWidth() / bHeight;
+        return (int) getSize().getWidth() / viewRows;
     }
 
     /**
-     * Gets piece at coordinate position
-     * @param x coordinate
-     * @param y coordinate
-     * @return position of shape
+     * Gets where a board row is drawn
+     * @param y row
+     * @return int y pixel of the top of the row, outside the panel if the
+     * row is not in view
      */
-    private Tetris pieceAt(int x, int y) {
-        return board[(y * bWidth) + x];
+    private int rowPixel(int y) {
+        int boardTop = (int) getSize().getHeight() - viewRows * sqHeight();
+        return boardTop + (viewBottom + viewRows - 1 - y) * sqHeight();
     }
 
     /**
@@ -131,13 +299,20 @@ public class Board extends JPanel implements ActionListener {
             return;
         }
 
-        started = true;
-        atBottom = false;
-        score = 0;
-        clear();
+        synchronized (engine) {
+            shownScore = 0;
+            ended = false;
 
-        newPiece();
-        timer.start();
+            // a replay's engine was started by the player
+            if (replay == null) {
+                engine.start();
+                recorder = new ReplayRecorder(engine, speed, "uniform", seed, keyframeTicks);
+                engine.setRecorder(recorder);
+            }
+        }
+        metrics.publish();
+        loop.start();
+        repaint();
     }
 
     /**
@@ -146,151 +321,33 @@ public class Board extends JPanel implements ActionListener {
     private void pause() {
 
         // check if game is already paused
-        if (!started)
+        if (!isPlaying())
             return;
 
         paused = !paused;
+        loop.setPaused(paused);
         if (paused) {
-            timer.stop();
+
+            // keys held into the pause must not repeat once it ends
+            releaseAll();
             scorebar.setText("Paused");
         } else {
-            timer.start();
+            resumedAt = System.nanoTime();
             changeScoreMultiplier();
-            scorebar.setText("Score: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
+            scorebar.setText("Score: " + String.valueOf((int)(engine.getScore() * 100 * scoreMultiplier)));
         }
         repaint();
     }
 
     /**
-     * Set colors to use for tetromino pieces
-     * @param c int to choose color array
-     * @return color array to use
-     */
-    private Color[] chooseColor(int c) {
-
-        // set colors
-        Color colors[];
-
-        // default colors
-        if (c == 0) {
-            colors = new Color[]{
-                    new Color(0, 0, 0),
-                    new Color(255, 0, 0),
-                    new Color(0, 255, 37),
-                    new Color(0, 10, 255),
-                    new Color(240, 238, 0),
-                    new Color(204, 0, 222),
-                    new Color(0, 241, 239),
-                    new Color(255, 154, 0)
-            };
-        }
-        // dull colors
-        else if (c == 1) {
-            colors = new Color[]{
-                    new Color(0, 0, 0),
-                    new Color(135, 0, 0),
-                    new Color(0, 125, 22),
-                    new Color(0, 4, 130),
-                    new Color(179, 178, 0),
-                    new Color(123, 0, 133),
-                    new Color(0, 128, 127),
-                    new Color(182, 110, 0)
-            };
-        }
-        // black and white colors
-        else if (c == 2) {
-            colors = new Color[]{
-                    new Color(0, 0, 0),
-                    new Color(255, 255, 255),
-                    new Color(168, 168, 168),
-                    new Color(21, 21, 21),
-                    new Color(113, 113, 113),
-                    new Color(73, 73, 73),
-                    new Color(100, 100, 100),
-                    new Color(220, 220, 220)
-            };
-        }
-
-        // fall colors
-        else if (c == 3) {
-            colors = new Color[]{
-                    new Color(0, 0, 0),
-                    new Color(187, 0, 0),
-                    new Color(238, 236, 0),
-                    new Color(242, 140, 0),
-                    new Color(192, 111, 0),
-                    new Color(172, 171, 0),
-                    new Color(242, 0, 0),
-                    new Color(154, 88, 0)
-            };
-        }
-
-        // spring colors
-        else if (c == 4) {
-            colors = new Color[]{
-                    new Color(0, 0, 0),
-                    new Color(0, 232, 255),
-                    new Color(0, 255, 44),
-                    new Color(0, 169, 29),
-                    new Color(255, 253, 0),
-                    new Color(255, 0, 254),
-                    new Color(177, 0, 176),
-                    new Color(0, 10, 255)
-            };
-        }
-
-        // black colors
-        else if (c == 5) {
-            colors = new Color[]{
-                    new Color(0, 0, 0),
-                    new Color(0, 0, 0),
-                    new Color(0, 0, 0),
-                    new Color(0, 0, 0),
-                    new Color(0, 0, 0),
-                    new Color(0, 0, 0),
-                    new Color(0, 0, 0),
-                    new Color(0, 0, 0)
-            };
-        }
-
-        // set default colors
-        else {
-            colors = new Color[]{
-                    new Color(0, 0, 0),
-                    new Color(255, 0, 0),
-                    new Color(0, 255, 37),
-                    new Color(0, 10, 255),
-                    new Color(240, 238, 0),
-                    new Color(204, 0, 222),
-                    new Color(0, 241, 239),
-                    new Color(255, 154, 0)
-            };
-        }
-        return colors;
-    }
-
-    /**
-     * Fills color for pieces
+     * Draws one square of a piece
      * @param g graphics object
      * @param x coordinate
      * @param y coordinate
      * @param piece tetromino shape
      */
     private void fillPiece(Graphics g, int x, int y, Tetris piece) {
-        Color colors[] = chooseColor(color);
-
-        // set of colors
-        Color c = colors[piece.ordinal()];
-
-        // logic to fill shapes with colors
-        g.setColor(c);
-        g.fillRect(x + 1, y + 1, sqWidth() - 2, sqHeight() - 2);
-        g.setColor(c.brighter());
-        g.drawLine(x, y + sqHeight() - 1, x, y);
-        g.drawLine(x, y, x + sqWidth() - 1, y);
-        g.setColor(c.darker());
-        g.drawLine(x + 1, y + sqHeight() - 1, x + sqWidth() - 1, y + sqHeight() - 1);
-        g.drawLine(x + sqWidth() - 1, y + sqHeight() - 1, x + sqWidth() - 1, y + 1);
+        g.drawImage(theme.sprite(piece), x, y, null);
     }
 
     /**
@@ -298,305 +355,667 @@ public class Board extends JPanel implements ActionListener {
      * @param g graphics objects
      */
     public void paint(Graphics g) {
+        long start = System.nanoTime();
 
         super.paint(g);
 
+        // loop thread changes the engine while we draw
+        synchronized (engine) {
+            paintBoard(g);
+            takeShownPresses(g.getClipBounds());
+        }
+        if (showOverlay) {
+            paintOverlay(g);
+        }
+
+        // key presses are on screen once this frame is done
+        long now = System.nanoTime();
+        paintTimes.record(now - start);
+        for (int i = 0; i < paintedAt.length; i++) {
+            if (paintedAt[i] != 0) {
+                latency[i].record(now - paintedAt[i]);
+                paintedAt[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Takes the waiting key presses whose changes this paint draws, caller
+     * must hold the engine lock and have painted the board under it
+     * @param clip area being painted, null for all of it
+     */
+    private void takeShownPresses(Rectangle clip) {
+        for (int i = 0; i < shownAt.length; i++) {
+            Rectangle area = shownArea[i];
+            if (shownAt[i] != 0 && (clip == null || area.isEmpty() || clip.contains(area))) {
+                paintedAt[i] = shownAt[i];
+                shownAt[i] = 0;
+                shownArea[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Draws input latency percentiles in the top left corner
+     * @param g graphics objects
+     */
+    private void paintOverlay(Graphics g) {
+        g.setColor(overlayBackground);
+        g.fillRect(0, 0, overlayWidth, overlayHeight);
+        g.setColor(Color.WHITE);
+        g.setFont(overlayFont);
+        int y = 14;
+        g.drawString("key to frame latency", 4, y);
+        for (int i = 0; i < latency.length; i++) {
+            LatencyHistogram h = latency[i];
+            if (overlayLines[i] == null || overlayCounts[i] != h.getCount()) {
+                overlayLines[i] = String.format("%-8s p50 %6.2f p99 %6.2f p99.9 %6.2f ms", actions[i],
+                        h.getPercentileMillis(50), h.getPercentileMillis(99), h.getPercentileMillis(99.9));
+                overlayCounts[i] = h.getCount();
+            }
+            y += 15;
+            g.drawString(overlayLines[i], 4, y);
+        }
+    }
+
+    /**
+     * Writes the latency percentiles to a report file in the background
+     */
+    private void exportLatency() {
+        StringBuilder report = new StringBuilder("Key to frame latency\n");
+        for (Action a : Action.values()) {
+            report.append(a).append(": ").append(latency[a.ordinal()]).append('\n');
+        }
+        report.append("Tick lateness: ").append(loop.getTickLateness()).append('\n');
+        report.append("Frame times: ").append(loop.getFrameTimes()).append('\n');
+
+        File file = new File("latency-" + System.currentTimeMillis() + ".txt");
+        storage.execute(() -> {
+            try (Writer out = new FileWriter(file)) {
+                out.write(report.toString());
+                System.out.println("Latency report saved to " + file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Draws the board and falling piece
+     * @param g graphics objects
+     */
+    private void paintBoard(Graphics g) {
+
         Dimension s = getSize();
 
-        int boardTop = (int) s.getHeight() - bHeight * sqHeight();
+        int boardTop = (int) s.getHeight() - viewRows * sqHeight();
+
+        // redraw cell images only if the board was resized
+        theme.prepare(getGraphicsConfiguration(), sqWidth(), sqHeight());
+        if (sqWidth() <= 0 || sqHeight() <= 0) {
+            return;
+        }
 
-        for (int i = 0; i < bHeight; ++i) {
-            for (int j = 0; j < bWidth; ++j) {
-                Tetris shape = pieceAt(j, bHeight - i - 1);
+        // only visit squares inside the area being repainted, and only rows in view
+        Rectangle clip = g.getClipBounds();
+        int firstRow = 0, lastRow = viewRows - 1, firstCol = 0, lastCol = bWidth - 1;
+        if (clip != null) {
+            firstRow = Math.max(0, (clip.y - boardTop) / sqHeight());
+            lastRow = Math.min(viewRows - 1, (clip.y + clip.height - 1 - boardTop) / sqHeight());
+            firstCol = Math.max(0, clip.x / sqWidth());
+            lastCol = Math.min(bWidth - 1, (clip.x + clip.width - 1) / sqWidth());
+        }
+
+        for (int i = firstRow; i <= lastRow; ++i) {
+            for (int j = firstCol; j <= lastCol; ++j) {
+                Tetris shape = engine.pieceAt(j, viewBottom + viewRows - i - 1);
                 if (shape != Tetris.emptyPiece) {
                     fillPiece(g, j * sqWidth(), boardTop + i * sqHeight(), shape);
                 }
             }
         }
 
+        Piece curPiece = engine.getCurPiece();
+        int curX = engine.getCurX();
+        int curY = engine.getCurY();
         if (curPiece.getPiece() != Tetris.emptyPiece) {
+
+            // ghost goes under the falling piece where they overlap
+            int landY = engine.dropY(curPiece, curX, curY);
+            for (int i = 0; i < 4; ++i) {
+                int x = curX + curPiece.adjustX(i);
+                int y = landY - curPiece.adjustY(i);
+                g.drawImage(theme.ghost(curPiece.getPiece()), x * sqWidth(), rowPixel(y), null);
+            }
             for (int i = 0; i < 4; ++i) {
                 int x = curX + curPiece.adjustX(i);
                 int y = curY - curPiece.adjustY(i);
-                fillPiece(g, x * sqWidth(), boardTop + (bHeight - y - 1) * sqHeight(), curPiece.getPiece());
+                fillPiece(g, x * sqWidth(), rowPixel(y) + dropOffset, curPiece.getPiece());
             }
         }
     }
 
     /**
-     * Checks if space is already occupied
-     * @param newPiece tetromino shape
-     * @param newX x coordinate
-     * @param newY y coordinate
+     * Checks if a piece is falling and can be moved
      * @return boolean
      */
-    private boolean move(Piece newPiece, int newX, int newY) {
-
-        // try move
-        for (int i = 0; i < 4; ++i) {
-            int x = newX + newPiece.adjustX(i);
-            int y = newY - newPiece.adjustY(i);
+    private boolean isPlaying() {
+        synchronized (engine) {
+            return engine.isStarted() && engine.getCurPiece().getPiece() != Tetris.emptyPiece;
+        }
+    }
 
-            // check if piece has room to attempt move
-            if (x < 0 || x >= bWidth || y < 0 || y >= bHeight) {
-                return false;
-            }
-            if (pieceAt(x, y) != Tetris.emptyPiece) {
+    /**
+     * Passes an input to the engine and updates the score bar, changed
+     * squares are repainted by the caller
+     * @param input timer tick or player move
+     * @return true if the board or falling piece changed
+     */
+    private boolean step(Engine.Input input) {
+        synchronized (engine) {
+            if (!engine.step(input)) {
                 return false;
             }
         }
-
-        // set new piece
-        curPiece = newPiece;
-        curX = newX;
-        curY = newY;
-        repaint();
+        showResult();
         return true;
     }
 
     /**
-     * Drops piece one line down
+     * Passes a player move to the engine and starts timing it until it is
+     * painted
+     * @param input player move
+     * @param action kind of move for the latency histograms
+     * @param pressed when the key press arrived, from System.nanoTime
+     * @return true if the board or falling piece changed
      */
-    private void moveOneLineDown() {
-        if (!move(curPiece, curX, curY - 1)) {
-            pieceDropped();
+    private boolean step(Engine.Input input, Action action, long pressed) {
+        if (!step(input)) {
+            return false;
+        }
+        if (pressedAt[action.ordinal()] == 0) {
+            pressedAt[action.ordinal()] = pressed;
         }
+        return true;
     }
 
     /**
-     * Clears board of all pieces
+     * Updates the score bar and ends the game after the engine changed
      */
-    private void clear() {
-        for (int i = 0; i < bHeight * bWidth; ++i) {
-            board[i] = Tetris.emptyPiece;
+    private void showResult() {
+        boolean over;
+        int score;
+        synchronized (engine) {
+            over = engine.isOver() && !ended;
+            ended |= over;
+            score = engine.getScore();
+            if (score == shownScore && !over) {
+                return;
+            }
+            shownScore = score;
+        }
+
+        // update score bar when lines are removed
+        SwingUtilities.invokeLater(() -> {
+            changeScoreMultiplier();
+            scorebar.setText("Score: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
+        });
+
+        if (over) {
+            loop.stop();
+            saveReplay();
+            SwingUtilities.invokeLater(this::gameOver);
         }
     }
 
     /**
-     * Removes line if full
+     * Writes the finished game to the replays folder
      */
-    private void removeFullLines() {
-        int lines = 0;
-
-        for (int i = bHeight - 1; i >= 0; --i) {
-            boolean fullLine = true;
-
-            for (int j = 0; j < bWidth; ++j) {
-                if (pieceAt(j, i) == Tetris.emptyPiece) {
-                    fullLine = false;
-                    break;
-                }
+    private void saveReplay() {
+        if (recorder == null) {
+            return;
+        }
+        ReplayRecorder r = recorder;
+        long ticks;
+        synchronized (engine) {
+            engine.setRecorder(null);
+            ticks = engine.getTicks();
+        }
+        recorder = null;
+
+        File file = new File("replays", "replay-" + System.currentTimeMillis() + ".trp");
+        storage.execute(() -> {
+            try {
+                r.save(ticks, file);
+                System.out.println("Replay saved to " + file);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        });
+    }
 
-            if (fullLine) {
-                ++lines;
-                for (int k = i; k < bHeight - 1; ++k) {
-                    for (int j = 0; j < bWidth; ++j)
-                        board[(k * bWidth) + j] = pieceAt(j, k + 1);
-                }
+    /**
+     * Repaints only the squares the engine changed since the last repaint,
+     * caller must hold the engine lock
+     */
+    private void repaintDirty() {
+        if (!engine.isDirty()) {
+            return;
+        }
+        Rectangle area;
+        if (scrollView()) {
+            engine.clearDirty();
+            area = new Rectangle(getSize());
+            repaint();
+        } else {
+
+            // piece may have been drawn part way into the row below
+            area = repaintCells(engine.dirtyMinX(), Math.max(0, engine.dirtyMinY() - 1),
+                    engine.dirtyMaxX(), engine.dirtyMaxY());
+            engine.clearDirty();
+
+            // ghost moves with the piece and with the stack under it
+            Piece p = engine.getCurPiece();
+            int x = engine.getCurX();
+            int y = p.getPiece() == Tetris.emptyPiece ? 0 : engine.dropY(p, x, engine.getCurY());
+            if (p != ghostPiece || x != ghostX || y != ghostY) {
+                area.add(repaintPiece(ghostPiece, ghostX, ghostY));
+                area.add(repaintPiece(p, x, y));
+                ghostPiece = p;
+                ghostX = x;
+                ghostY = y;
             }
         }
 
-        // add removed lines to score
-        if (lines > 0) {
-            score += lines;
-            changeScoreMultiplier();
-            scorebar.setText("Score: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
-            atBottom = true;
-            curPiece.setPiece(Tetris.emptyPiece);
-            repaint();
+        // key presses count as shown once a paint covers what they changed
+        area = area.intersection(new Rectangle(getSize()));
+        for (int i = 0; i < pressedAt.length; i++) {
+            if (pressedAt[i] != 0 && shownAt[i] == 0) {
+                shownAt[i] = pressedAt[i];
+                shownArea[i] = area;
+            }
+            pressedAt[i] = 0;
         }
     }
 
     /**
-     * Checks if a line is full
+     * Moves the rows in view so the falling piece can be seen, caller must
+     * hold the engine lock
+     * @return true if the view moved and the whole board must be repainted
      */
-    private void pieceDropped() {
-        for (int i = 0; i < 4; ++i) {
-            int x = curX + curPiece.adjustX(i);
-            int y = curY - curPiece.adjustY(i);
-            board[(y * bWidth) + x] = curPiece.getPiece();
+    private boolean scrollView() {
+        Piece p = engine.getCurPiece();
+        if (viewRows == bHeight || p.getPiece() == Tetris.emptyPiece) {
+            return false;
         }
-        removeFullLines();
+        int top = engine.getCurY() - p.minY();
+        int low = engine.getCurY() - p.maxY();
+        int bottom = viewBottom;
+        if (top >= bottom + viewRows) {
+            bottom = top - viewRows + 1;
+        } else if (low < bottom) {
+
+            // leave room to see the stack the piece is falling onto
+            bottom = Math.max(0, low - viewRows / 4);
+        }
+        if (bottom == viewBottom) {
+            return false;
+        }
+        viewBottom = bottom;
+        return true;
+    }
 
-        // check if piece is at the bottom
-        if (!atBottom) {
-            newPiece();
+    /**
+     * Repaints the box around a piece
+     * @param p tetromino shape, nothing is repainted for the empty piece
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return Rectangle area repainted, empty for the empty piece
+     */
+    private Rectangle repaintPiece(Piece p, int x, int y) {
+        if (p.getPiece() == Tetris.emptyPiece) {
+            return new Rectangle(0, 0, -1, -1);
         }
+        return repaintCells(x + p.minX(), y - p.maxY(), x + p.maxX(), y - p.minY());
     }
 
     /**
-     * Picks new piece to drop next
+     * Repaints a box of squares
+     * @param x0 left column
+     * @param y0 bottom row
+     * @param x1 right column
+     * @param y1 top row
+     * @return Rectangle area repainted
      */
-    private void newPiece() {
+    private Rectangle repaintCells(int x0, int y0, int x1, int y1) {
+        Rectangle r = new Rectangle(x0 * sqWidth(), rowPixel(y1), (x1 - x0 + 1) * sqWidth(),
+                (y1 - y0 + 1) * sqHeight());
+        repaint(r);
+        return r;
+    }
 
-        // pick next piece
-        curPiece.pickRandomPiece();
-        curX = bWidth / 2 + 1;
-        curY = bHeight - 1 + curPiece.minY();
+    /**
+     * Runs one gravity tick on the loop thread, or lets the bot place the
+     * falling piece when autoplay is on
+     */
+    @Override
+    public void tick() {
+        if (replay != null) {
+            boolean more;
+            synchronized (engine) {
+                more = replay.advance();
+            }
+            showResult();
+            if (!more && !ended) {
 
-        gameOver();
+                // recording stopped before the game was over
+                ended = true;
+                loop.stop();
+                SwingUtilities.invokeLater(() -> scorebar.setText("Replay finished"));
+            }
+            return;
+        }
+        if (bot == null || !isPlaying()) {
+            step(Engine.Input.tick);
+            return;
+        }
+        synchronized (engine) {
+            bot.play(engine);
+        }
+        showResult();
     }
 
     /**
-     * Logic for when game is over
+     * Requests a repaint of changed squares and moves the falling piece
+     * smoothly towards the next row, runs on the loop thread
+     * @param alpha fraction of the next tick already passed
      */
-    private void gameOver() {
+    @Override
+    public void render(double alpha) {
+        synchronized (engine) {
+            Piece p = engine.getCurPiece();
+            int x = engine.getCurX();
+            int y = engine.getCurY();
+
+            // only slide the piece if it will really fall on the next tick
+            int offset = 0;
+            if (p.getPiece() != Tetris.emptyPiece && engine.fits(p, x, y - 1)) {
+                offset = (int) (alpha * sqHeight());
+            }
+            if (offset != dropOffset) {
+                dropOffset = offset;
+                repaintCells(x + p.minX(), Math.max(0, y - p.maxY() - 1), x + p.maxX(), y - p.minY());
+            }
+            repaintDirty();
+        }
+        if (showOverlay) {
+            repaint(0, 0, overlayWidth, overlayHeight);
+        }
+    }
 
-        // check if board is full
-        if (!move(curPiece, curX, curY)) {
-            curPiece.setPiece(Tetris.emptyPiece);
-            timer.stop();
-            started = false;
-            if ( Integer.parseInt(String.valueOf(score * 100)) > Integer.parseInt(highScores[9][1]) ) {
-                changeScoreMultiplier();
-                scorebar.setText("New Top 10 High Score!: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
-                highScores[9][0] = playerName;
-                highScores[9][1] = Integer.toString(score * 100);
-                saveScores();
+    /**
+     * Applies queued key events and held key repeats on the loop thread,
+     * then repaints what they changed
+     * @param now current System.nanoTime
+     * @return long System.nanoTime the next held key repeat is due
+     */
+    @Override
+    public long input(long now) {
+        boolean changed = false;
+        for (int code = queue.poll(); code >= 0; code = queue.poll()) {
+            if (code >> 1 == releaseKeys) {
+                letGo();
+                continue;
+            }
+            Control c = controls[code >> 1];
+            long at = queue.polledTime();
+            if ((code & 1) == 0) {
+                release(c, at);
             }
-            else {
-                changeScoreMultiplier();
-                scorebar.setText("Game Over! Score: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
+            else if (at - resumedAt >= 0) {
+                changed |= press(c, at);
             }
+        }
 
-            String[] options = {"Yes", "No"};
-            int x = JOptionPane.showOptionDialog(null, "Would you like to start a New Game?",
-                    "Game Over!",
-                    JOptionPane.DEFAULT_OPTION, JOptionPane.INFORMATION_MESSAGE, null, options, options[0]);
+        if (releasePending) {
+            releasePending = false;
+            letGo();
+        }
 
-            // check popup options
-            if (x == 0) {
-                new Game();
-            }
-            else {
-                System.exit(0);
+        // held keys catch up on repeats even if this pass ran late
+        for (int i = 0, k; i < maxRepeats && (k = shift.due(now)) >= 0; ++i) {
+            changed |= shift(controls[k], 0);
+        }
+        for (int i = 0; i < maxRepeats && drop.due(now) >= 0; ++i) {
+            changed |= replay == null && bot == null && step(Engine.Input.softDrop);
+        }
+        if (changed) {
+            synchronized (engine) {
+                repaintDirty();
             }
         }
+        return Math.min(shift.deadline(), drop.deadline());
     }
 
     /**
-     * Saves scores to text file to keep track of high scores
+     * Lets go of every held key on the loop thread, after the key events
+     * queued before it. A full queue leaves it for the end of the next pass.
      */
-    private void saveScores() {
+    private void releaseAll() {
+        if (!queue.offer(releaseKeys, false, System.nanoTime())) {
+            releasePending = true;
+        }
+        loop.wake();
+    }
 
+    /**
+     * Stops every held key from repeating or counting as held
+     */
+    private void letGo() {
+        shift.releaseAll();
+        drop.releaseAll();
+        Arrays.fill(held, false);
+    }
 
-        try {
-            FileWriter writer = new FileWriter("highscores.dat");
-            BufferedWriter buffer = new BufferedWriter(writer);
-            for (int j = 0; j < highScores.length; j++) {
-                for (int k = 0; k < 2; k++) {
-                    buffer.write(highScores[j][k]);
-                    if ( k==0 ) {
-                        buffer.write(",");
-                    } else {
-                        buffer.write("\n");
-                    }
+    /**
+     * Handles a key going down, the system's own key repeats are ignored
+     * @param c control pressed
+     * @param at when it went down
+     * @return true if the board or falling piece changed
+     */
+    private boolean press(Control c, long at) {
+        switch (c) {
+            case left:
+            case right:
+                return shift.press(c.ordinal(), at) && shift(c, at);
+            case softDrop:
+                if (!drop.press(0, at)) {
+                    return false;
                 }
-            }
-            buffer.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+                break;
+            default:
+                if (held[c.ordinal()]) {
+                    return false;
+                }
+                held[c.ordinal()] = true;
+                break;
         }
+
+        // can't do moves if a replay is shown or the bot is playing
+        return replay == null && bot == null && isPlaying() && step(c.input, c.action, at);
     }
 
     /**
-     * Drops piece into lowest position
+     * Handles a key going up
+     * @param c control released
+     * @param at when it went up
      */
-    private void instantDrop() {
-        int newY = curY;
-
-        // drop piece while there is an empty line below
-        while (newY > 0) {
-            if (!move(curPiece, curX, newY - 1)) {
+    private void release(Control c, long at) {
+        switch (c) {
+            case left:
+            case right:
+                shift.release(c.ordinal(), at);
+                break;
+            case softDrop:
+                drop.release(0, at);
                 break;
+            default:
+                held[c.ordinal()] = false;
+                break;
+        }
+    }
+
+    /**
+     * Moves the falling piece sideways, or seeks while a replay is shown
+     * @param c left or right
+     * @param pressed when the key went down, 0 for a repeat
+     * @return true if the board or falling piece changed
+     */
+    private boolean shift(Control c, long pressed) {
+        if (replay != null) {
+            if (!isPlaying()) {
+                return false;
             }
-            --newY;
+            int ticks = c == Control.left ? -seekTicks : seekTicks;
+            synchronized (engine) {
+                replay.seek(Math.max(0, engine.getTicks() + ticks));
+            }
+            showResult();
+            return true;
+        }
+        if (bot != null || !isPlaying()) {
+            return false;
         }
-        pieceDropped();
+        return pressed != 0 ? step(c.input, c.action, pressed) : step(c.input);
     }
 
     /**
-     * Checks when to get new piece
-     * @param e action event
+     * Logic for when game is over
      */
-    public void actionPerformed(ActionEvent e) {
+    private void gameOver() {
+        int score;
+        synchronized (engine) {
+            score = engine.getScore();
+        }
+        if (replay != null) {
+            changeScoreMultiplier();
+            scorebar.setText("Replay over! Score: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
+            return;
+        }
+        // every score is kept, the table only shows the best
+        storage.addScore(playerName, score * 100);
+        if (leaderboard.submit(playerName, score * 100)) {
+            changeScoreMultiplier();
+            scorebar.setText("New Top 10 High Score!: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
+        }
+        else {
+            changeScoreMultiplier();
+            scorebar.setText("Game Over! Score: " + String.valueOf((int)(score * 100 * scoreMultiplier)));
+        }
 
-        // check if piece is at bottom
-        if (atBottom) {
-            atBottom = false;
-            newPiece();
-        } else {
-            moveOneLineDown();
+        String[] options = {"Yes", "No"};
+        int x = JOptionPane.showOptionDialog(null, "Would you like to start a New Game?",
+                "Game Over!",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.INFORMATION_MESSAGE, null, options, options[0]);
+
+        // check popup options
+        if (x == 0) {
+            new Game();
+        }
+        else {
+            System.exit(0);
         }
     }
 
     /**
-     * Key adapter class
+     * Key adapter class, hands moves to the loop thread and handles only
+     * what belongs to the window here
      */
     class TAdapter extends KeyAdapter {
 
         /**
-         * Checks when keys are hit to make moves
+         * Queues moves and handles pause and debug keys
          * @param e key pressed
          */
         public void keyPressed(KeyEvent e) {
 
-            if (!started || curPiece.getPiece() == Tetris.emptyPiece) {
-                return;
-            }
+            // latency is measured from here to the end of the next paint
+            long pressed = System.nanoTime();
 
             // code for key pressed
             int keycode = e.getKeyCode();
 
+            // debug keys work at any time
+            if (keycode == KeyEvent.VK_F3) {
+                showOverlay = !showOverlay;
+                repaint(0, 0, overlayWidth, overlayHeight);
+                return;
+            }
+            if (keycode == KeyEvent.VK_F4) {
+                exportLatency();
+                return;
+            }
+
             // pause game
             if (keycode == 'p' || keycode == 'P') {
-                pause();
+                if (isPlaying()) {
+                    pause();
+                }
                 return;
             }
 
-            // can't do moves of game is paused
-            if (paused) {
-                return;
+            Control c = control(keycode);
+            if (c != null && queue.offer(c.ordinal(), true, pressed)) {
+                loop.wake();
+            }
+        }
+
+        /**
+         * Queues the end of a held move
+         * @param e key released
+         */
+        public void keyReleased(KeyEvent e) {
+            Control c = control(e.getKeyCode());
+            if (c != null && queue.offer(c.ordinal(), false, System.nanoTime())) {
+                loop.wake();
             }
+        }
 
-            // controls for moves
+        /**
+         * Maps a key to the move it controls
+         * @param keycode key code
+         * @return Control move, null for any other key
+         */
+        private Control control(int keycode) {
             switch (keycode) {
 
                 // move left
                 case KeyEvent.VK_LEFT:
-                    move(curPiece, curX - 1, curY);
-                    break;
+                    return Control.left;
 
                 // move right
                 case KeyEvent.VK_RIGHT:
-                    move(curPiece, curX + 1, curY);
-                    break;
+                    return Control.right;
 
                 // rotate left
                 case KeyEvent.VK_DOWN:
-                    move(curPiece.rotateLeft(), curX, curY);
-                    break;
+                    return Control.rotateLeft;
 
                 // rotate right
                 case KeyEvent.VK_UP:
-                    move(curPiece.rotateRight(), curX, curY);
-                    break;
+                    return Control.rotateRight;
 
                 // instant drop to bottom
                 case KeyEvent.VK_SPACE:
-                    instantDrop();
-                    break;
+                    return Control.hardDrop;
 
                 // speed up drop
                 case KeyEvent.VK_SHIFT:
-                    moveOneLineDown();
-                    break;
+                    return Control.softDrop;
 
                 // any other key
                 default :
-                    break;
+                    return null;
             }
         }
     }
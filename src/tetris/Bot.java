@@ -0,0 +1,289 @@
+package tetris;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Autoplay bot. Finds every place the falling piece can reach by falling
+ * until it has room to rotate, rotating, sliding sideways and dropping, scores each resulting board
+ * with a heuristic and plays the best one. Scoring is split across a fork
+ * join pool so the caller thread only waits for the answer.
+ */
+public class Bot {
+
+    /** most placements scored by one task before it is split */
+    private static final int leafSize = 4;
+
+    /** scores boards after a placement */
+    protected final Heuristic heuristic;
+
+    /** pool used for scoring, null to score on the calling thread */
+    protected final ForkJoinPool pool;
+
+    /**
+     * Creates a bot
+     * @param heuristic scores boards after a placement
+     * @param pool pool used for scoring, null to score on the calling thread
+     */
+    public Bot(Heuristic heuristic, ForkJoinPool pool) {
+        this.heuristic = heuristic;
+        this.pool = pool;
+    }
+
+    /**
+     * Lists every landing the falling piece can reach, unscored
+     * @param engine game to look at
+     * @return List of placements
+     */
+    public static List<Placement> placements(Engine engine) {
+        long[] rows = new long[reach(engine.getStackHeight(), engine.getHeight())];
+        engine.copyRows(rows);
+        return placements(rows, engine.getStackHeight(), engine.getWidth(), engine.getHeight(),
+                engine.getCurPiece(), engine.getCurX(), engine.getCurY());
+    }
+
+    /**
+     * Lists every landing a piece can reach on a board given as rows,
+     * unscored
+     * @param rows occupied cells, one bit per column for each row, rows
+     * past the end of the array are empty
+     * @param stackHeight rows at or above this one are empty
+     * @param width number of columns
+     * @param height number of rows
+     * @param start piece in its current rotation
+     * @param x0 x coordinate of the piece
+     * @param y0 y coordinate of the piece
+     * @return List of placements
+     */
+    public static List<Placement> placements(long[] rows, int stackHeight, int width, int height,
+                                             Piece start, int x0, int y0) {
+        List<Placement> list = new ArrayList<>();
+        if (start.getPiece() == Tetris.emptyPiece) {
+            return list;
+        }
+
+        for (int r = 0; r < 4; ++r) {
+            Piece state = r == 3 ? start.rotateLeft() : start;
+            for (int i = 0; i < r && r < 3; ++i) {
+                state = state.rotateRight();
+            }
+            if (r > 0 && state == start) {
+                break;
+            }
+
+            // pieces spawn against the top, so fall until there is room to rotate
+            int y = y0;
+            while (!canRotate(rows, width, height, start, r, x0, y)) {
+                if (!Engine.fits(rows, width, height, start, x0, y - 1)) {
+                    break;
+                }
+                --y;
+            }
+            if (!canRotate(rows, width, height, start, r, x0, y)) {
+                continue;
+            }
+
+            // slide left then right until blocked, dropping at each column
+            for (int dir = -1; dir <= 1; dir += 2) {
+                for (int x = dir < 0 ? x0 : x0 + 1; Engine.fits(rows, width, height, state, x, y); x += dir) {
+                    // nothing is in the way above the stack, so skip straight down to it
+                    int landY = Math.min(y, stackHeight + state.maxY());
+                    while (Engine.fits(rows, width, height, state, x, landY - 1)) {
+                        --landY;
+                    }
+                    list.add(new Placement(state, y0 - y, r, x, landY, 0));
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Checks if every rotation on the way to a rotation state fits
+     * @param rows occupied cells, one bit per column for each row
+     * @param width number of columns
+     * @param height number of rows
+     * @param start current rotation state
+     * @param r right rotations, 3 is done as one left rotation
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return boolean
+     */
+    private static boolean canRotate(long[] rows, int width, int height, Piece start, int r, int x, int y) {
+        if (r == 3) {
+            return Engine.fits(rows, width, height, start.rotateLeft(), x, y);
+        }
+        Piece state = start;
+        for (int i = 0; i <= r; ++i) {
+            if (!Engine.fits(rows, width, height, state, x, y)) {
+                return false;
+            }
+            state = state.rotateRight();
+        }
+        return true;
+    }
+
+    /**
+     * Finds the best placement for the falling piece
+     * @param engine game to look at, not changed while this runs
+     * @return Placement best placement, or null if there is no piece
+     */
+    public Placement best(Engine engine) {
+        List<Placement> list = placements(engine);
+        if (list.isEmpty()) {
+            return null;
+        }
+
+        long[] base = new long[reach(engine.getStackHeight(), engine.getHeight())];
+        engine.copyRows(base);
+        Search search = new Search(list, 0, list.size(), base, engine.getStackHeight(), engine.getWidth());
+        return pool == null ? search.compute() : pool.invoke(search);
+    }
+
+    /**
+     * Moves the falling piece to its best placement and drops it
+     * @param engine game to play
+     * @return true if the board changed
+     */
+    public boolean play(Engine engine) {
+        Placement best = best(engine);
+        if (best == null) {
+            return false;
+        }
+        for (int d = 0; d < best.getDrops(); ++d) {
+            engine.step(Engine.Input.softDrop);
+        }
+        if (best.getRotations() == 3) {
+            engine.step(Engine.Input.rotateLeft);
+        }
+        for (int r = 0; r < best.getRotations() && best.getRotations() < 3; ++r) {
+            engine.step(Engine.Input.rotateRight);
+        }
+        while (engine.getCurX() < best.getX() && engine.step(Engine.Input.right)) {
+            // keep sliding
+        }
+        while (engine.getCurX() > best.getX() && engine.step(Engine.Input.left)) {
+            // keep sliding
+        }
+        return engine.step(Engine.Input.hardDrop);
+    }
+
+    /**
+     * Rows a search has to keep for a board, the ones a landing piece can
+     * reach, so tall boards are not copied whole
+     * @param stackHeight rows at or above this one are empty
+     * @param height number of rows
+     * @return int rows from the bottom
+     */
+    static int reach(int stackHeight, int height) {
+
+        // a landed piece never reaches more than four rows above the stack
+        return Math.min(height, stackHeight + 4);
+    }
+
+    /**
+     * Locks a piece into rows and removes full lines
+     * @param rows occupied cells, changed in place, at least reach rows long
+     * @param stackHeight rows at or above this one are empty
+     * @param width number of columns
+     * @param p rotation state of the piece
+     * @param x landing column
+     * @param y landing row
+     * @return int lines removed, new stack height is the old one raised to
+     * the top of the piece, minus the lines
+     */
+    static int land(long[] rows, int stackHeight, int width, Piece p, int x, int y) {
+        long full = width == 64 ? -1L : (1L << width) - 1;
+        int shift = x + p.minX();
+        int top = y - p.minY();
+        int low = y - p.maxY();
+        for (int j = 0; j < p.maskRows(); ++j) {
+            rows[top - j] |= p.rowMask(j) << shift;
+        }
+
+        int lines = 0;
+        for (int i = low; i <= top; ++i) {
+            if (rows[i] == full) {
+                ++lines;
+            }
+        }
+        if (lines == 0) {
+            return 0;
+        }
+
+        // move kept rows down over the full ones
+        int end = Math.max(stackHeight, top + 1);
+        int dst = low;
+        for (int src = low; src < end; ++src) {
+            if (rows[src] != full) {
+                rows[dst++] = rows[src];
+            }
+        }
+        for (int i = dst; i < end; ++i) {
+            rows[i] = 0;
+        }
+        return lines;
+    }
+
+    /**
+     * Scores a range of placements, splitting large ranges in half
+     */
+    private class Search extends RecursiveTask<Placement> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** placements to score */
+        private final List<Placement> list;
+
+        /** range of this task */
+        private final int from, to;
+
+        /** board before the piece lands, shared and only read */
+        private final long[] base;
+
+        /** board size */
+        private final int stackHeight, width;
+
+        Search(List<Placement> list, int from, int to, long[] base, int stackHeight, int width) {
+            this.list = list;
+            this.from = from;
+            this.to = to;
+            this.base = base;
+            this.stackHeight = stackHeight;
+            this.width = width;
+        }
+
+        @Override
+        protected Placement compute() {
+            if (pool != null && to - from > leafSize) {
+                int mid = (from + to) >>> 1;
+                Search left = new Search(list, from, mid, base, stackHeight, width);
+                Search right = new Search(list, mid, to, base, stackHeight, width);
+                left.fork();
+                Placement b = right.compute();
+                Placement a = left.join();
+                return a.getScore() >= b.getScore() ? a : b;
+            }
+
+            int used = base.length;
+            long[] rows = new long[used];
+            int[] heights = new int[width];
+            Placement best = null;
+            for (int i = from; i < to; ++i) {
+                Placement p = list.get(i);
+                System.arraycopy(base, 0, rows, 0, used);
+                int lines = land(rows, stackHeight, width, p.getPiece(), p.getX(), p.getY());
+                int top = Math.max(stackHeight, p.getY() - p.getPiece().minY() + 1) - lines;
+                double score = heuristic.score(rows, top, width, lines, heights);
+                if (best == null || score > best.getScore()) {
+                    best = p.withScore(score);
+                }
+            }
+            return best;
+        }
+    }
+}
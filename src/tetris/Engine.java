@@ -0,0 +1,1133 @@
+package tetris;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Game rules without any Swing dependencies. The engine only changes
+ * state when step is called, so it can be driven by a timer, a bot or a
+ * simulation loop as fast as the caller likes.
+ */
+public class Engine {
+
+    /** inputs accepted by step */
+    enum Input {none, tick, left, right, rotateLeft, rotateRight, softDrop, hardDrop}
+
+    /** all shapes by ordinal */
+    private static final Tetris[] shapes = Tetris.values();
+
+    /** shape garbage lines are drawn with */
+    private static final Tetris garbageShape = Tetris.squarePiece;
+
+    /** added to cell and piece numbers before mixing them into hash keys */
+    private static final long cellSalt = 0x2545F4914F6CDD1DL;
+    private static final long pieceSalt = 0x61C8864680B583EBL;
+
+    /** used to check the incremental hash and column heights after every step */
+    private static final boolean verifyHashDefault = Boolean.getBoolean("tetris.verifyHash");
+
+    /**
+     * Copy of a whole game, taken and put back without allocating so a
+     * game can be rolled back every frame
+     */
+    public static final class Snapshot {
+
+        /** board and stack */
+        private final long[] rows;
+        private final int[] rowFill;
+        private final RowStore board;
+        private int stackHeight;
+        private long boardHash;
+
+        /** falling piece */
+        private Piece curPiece;
+        private int curX, curY;
+        private long pieceHash;
+
+        /** game progress */
+        private boolean started, over, atBottom;
+        private int score, pieces, garbage;
+        private long ticks, holes;
+
+        /** piece generator state, see PieceGenerator.saveState */
+        private final long[] generator = new long[PieceGenerator.stateLongs];
+
+        Snapshot(int width, int height) {
+            rows = new long[height];
+            rowFill = new int[height];
+            board = new RowStore(width, height);
+        }
+    }
+
+    /** width of game board */
+    public static final int bWidth = 10;
+
+    /** height of game board */
+    public static final int bHeight = 22;
+
+    /** size of this board */
+    private final int width;
+    private final int height;
+
+    /** used to know when to get next piece */
+    private boolean atBottom = false;
+
+    /** used to know when game is started */
+    private boolean started = false;
+
+    /** used to know when game is over */
+    private boolean over = false;
+
+    /** number of lines cleared */
+    private int score = 0;
+
+    /** number of pieces locked into the board */
+    private int pieces = 0;
+
+    /** chooses the shape of each new piece */
+    private final PieceGenerator generator;
+
+    /** generator state kept aside while the preview is drawn */
+    private final long[] previewState = new long[PieceGenerator.stateLongs];
+
+    /** number of timer ticks since the game started */
+    private long ticks = 0;
+
+    /** garbage lines waiting to be pushed in under the stack */
+    private int garbage = 0;
+
+    /** chooses the open column of each batch of garbage lines */
+    private final SplitMix holes = new SplitMix(0);
+
+    /** records player inputs for a replay, null when not recording */
+    private ReplayRecorder recorder;
+
+    /** current position of falling piece */
+    private int curX = 0;
+    private int curY = 0;
+
+    /** current tetromino shape */
+    private Piece curPiece;
+
+    /** occupied cells, one bit per column for each row */
+    private final long[] rows;
+
+    /** number of occupied cells in each row */
+    private final int[] rowFill;
+
+    /** rows at or above this one are empty */
+    private int stackHeight = 0;
+
+    /**
+     * skyline of the stack, the row above the highest occupied cell of
+     * each column, so a piece can be dropped without walking down the rows
+     */
+    private final int[] columnHeights;
+
+    /** piece colors of occupied cells, only used for painting */
+    private final RowStore board;
+
+    /**
+     * Zobrist hash of the occupied cells, the xor of the key of every
+     * occupied cell, kept up to date as cells change
+     */
+    private long boardHash = 0;
+
+    /** hash key of the falling piece, 0 for none */
+    private long pieceHash = 0;
+
+    /** used to check the incremental hash and column heights after every step */
+    private boolean verifyHash = verifyHashDefault;
+
+    /** box around cells changed since the last clearDirty */
+    private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+
+    /**
+     * Default constructor. Creates an empty board of the standard size
+     */
+    public Engine() {
+        this(bWidth, bHeight, new UniformGenerator(System.nanoTime()));
+    }
+
+    /**
+     * Creates an empty board of the standard size
+     * @param generator chooses the shape of each new piece
+     */
+    public Engine(PieceGenerator generator) {
+        this(bWidth, bHeight, generator);
+    }
+
+    /**
+     * Creates an empty board
+     * @param width number of columns, at most 64
+     * @param height number of rows
+     * @param generator chooses the shape of each new piece
+     */
+    public Engine(int width, int height, PieceGenerator generator) {
+        checkSize(width, height);
+        this.width = width;
+        this.height = height;
+        this.generator = generator;
+        curPiece = Piece.of(Tetris.emptyPiece);
+        rows = new long[height];
+        rowFill = new int[height];
+        columnHeights = new int[width];
+        board = new RowStore(width, height);
+        clear();
+    }
+
+    /**
+     * Checks a board size without creating a board, for option parsing
+     * @param width number of columns
+     * @param height number of rows
+     * @throws IllegalArgumentException if the engine can't have that size
+     */
+    public static void checkSize(int width, int height) {
+        if (width < 4 || width > 64 || height < 4) {
+            throw new IllegalArgumentException("Board must be 4 to 64 wide and at least 4 high");
+        }
+    }
+
+    /**
+     * Getter for board width
+     * @return int number of columns
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Getter for board height
+     * @return int number of rows
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Getter for height of the stack
+     * @return int rows at or above this one are empty
+     */
+    public int getStackHeight() {
+        return stackHeight;
+    }
+
+    /**
+     * Checks if any cell changed since the last clearDirty
+     * @return boolean
+     */
+    public boolean isDirty() {
+        return dirtyMaxX >= dirtyMinX;
+    }
+
+    /**
+     * Left column of the changed cells
+     * @return int x coordinate
+     */
+    public int dirtyMinX() {
+        return dirtyMinX;
+    }
+
+    /**
+     * Right column of the changed cells
+     * @return int x coordinate
+     */
+    public int dirtyMaxX() {
+        return dirtyMaxX;
+    }
+
+    /**
+     * Bottom row of the changed cells
+     * @return int y coordinate
+     */
+    public int dirtyMinY() {
+        return dirtyMinY;
+    }
+
+    /**
+     * Top row of the changed cells
+     * @return int y coordinate
+     */
+    public int dirtyMaxY() {
+        return dirtyMaxY;
+    }
+
+    /**
+     * Forgets changed cells once they have been painted
+     */
+    public void clearDirty() {
+        dirtyMinX = Integer.MAX_VALUE;
+        dirtyMinY = Integer.MAX_VALUE;
+        dirtyMaxX = -1;
+        dirtyMaxY = -1;
+    }
+
+    /**
+     * Adds a box of cells to the changed cells
+     * @param x0 left column
+     * @param y0 bottom row
+     * @param x1 right column
+     * @param y1 top row
+     */
+    private void markDirty(int x0, int y0, int x1, int y1) {
+        dirtyMinX = Math.min(dirtyMinX, x0);
+        dirtyMinY = Math.min(dirtyMinY, y0);
+        dirtyMaxX = Math.max(dirtyMaxX, x1);
+        dirtyMaxY = Math.max(dirtyMaxY, y1);
+    }
+
+    /**
+     * Adds the cells covered by a piece to the changed cells
+     * @param p tetromino shape
+     * @param x x coordinate
+     * @param y y coordinate
+     */
+    private void markDirty(Piece p, int x, int y) {
+        markDirty(x + p.minX(), y - p.maxY(), x + p.maxX(), y - p.minY());
+    }
+
+    /**
+     * Resets game and starts a new one
+     */
+    public void start() {
+        started = true;
+        over = false;
+        atBottom = false;
+        score = 0;
+        pieces = 0;
+        ticks = 0;
+        garbage = 0;
+        holes.setState(0);
+        clear();
+
+        newPiece();
+    }
+
+    /**
+     * Advances the game by one input
+     * @param input timer tick or player move
+     * @return true if the board or falling piece changed
+     */
+    public boolean step(Input input) {
+        if (!started) {
+            return false;
+        }
+        boolean changed = apply(input);
+
+        // inputs that did nothing can be left out of a replay
+        if (input == Input.tick) {
+            ++ticks;
+            if (recorder != null) {
+                recorder.tick(this);
+            }
+        } else if (changed && recorder != null) {
+            recorder.record(ticks, input);
+        }
+        if (verifyHash && getHash() != fullHash()) {
+            throw new IllegalStateException("Board hash out of step after " + input + " at tick " + ticks);
+        }
+        if (verifyHash && !skylineMatches()) {
+            throw new IllegalStateException("Column heights out of step after " + input + " at tick " + ticks);
+        }
+        return changed;
+    }
+
+    /**
+     * Applies one input to a running game
+     * @param input timer tick or player move
+     * @return true if the board or falling piece changed
+     */
+    private boolean apply(Input input) {
+
+        // timer tick drops the piece or gets the next one
+        if (input == Input.tick) {
+            if (atBottom) {
+                atBottom = false;
+                newPiece();
+                return true;
+            }
+            return moveOneLineDown();
+        }
+
+        // player can't move an empty piece
+        if (curPiece.getPiece() == Tetris.emptyPiece) {
+            return false;
+        }
+
+        switch (input) {
+            case left:
+                return move(curPiece, curX - 1, curY);
+            case right:
+                return move(curPiece, curX + 1, curY);
+            case rotateLeft:
+                return move(curPiece.rotateLeft(), curX, curY);
+            case rotateRight:
+                return move(curPiece.rotateRight(), curX, curY);
+            case softDrop:
+                return moveOneLineDown();
+            case hardDrop:
+                instantDrop();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets piece at coordinate position
+     * @param x coordinate
+     * @param y coordinate
+     * @return position of shape
+     */
+    public Tetris pieceAt(int x, int y) {
+        return board.get(x, y);
+    }
+
+    /**
+     * Gets occupied cells of a row
+     * @param y row
+     * @return long one bit per occupied column
+     */
+    public long rowBits(int y) {
+        return rows[y];
+    }
+
+    /**
+     * Copies the occupied cells of the stack
+     * @param dst array at least getStackHeight long
+     */
+    public void copyRows(long[] dst) {
+        System.arraycopy(rows, 0, dst, 0, stackHeight);
+    }
+
+    /**
+     * Checks if a cell is occupied
+     * @param x coordinate
+     * @param y coordinate
+     * @return boolean
+     */
+    public boolean isFilled(int x, int y) {
+        return (rows[y] & (1L << x)) != 0;
+    }
+
+    /**
+     * Getter for current piece
+     * @return Piece falling piece
+     */
+    public Piece getCurPiece() {
+        return curPiece;
+    }
+
+    /**
+     * Getter for x position of falling piece
+     * @return int x coordinate
+     */
+    public int getCurX() {
+        return curX;
+    }
+
+    /**
+     * Getter for y position of falling piece
+     * @return int y coordinate
+     */
+    public int getCurY() {
+        return curY;
+    }
+
+    /**
+     * Getter for number of lines cleared
+     * @return int lines cleared
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Getter for number of pieces locked into the board
+     * @return int pieces
+     */
+    public int getPieces() {
+        return pieces;
+    }
+
+    /**
+     * Getter for number of timer ticks since the game started
+     * @return long ticks
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Starts or stops recording inputs
+     * @param r recorder, null to stop recording
+     */
+    public void setRecorder(ReplayRecorder r) {
+        recorder = r;
+    }
+
+    /**
+     * Creates a snapshot that fits this board
+     * @return Snapshot empty snapshot for save
+     */
+    public Snapshot newSnapshot() {
+        return new Snapshot(width, height);
+    }
+
+    /**
+     * Copies the whole game, including the piece generator, into a
+     * snapshot. Only rows up to the stack are copied
+     * @param s snapshot from newSnapshot of this engine
+     */
+    public void save(Snapshot s) {
+        System.arraycopy(rows, 0, s.rows, 0, stackHeight);
+        System.arraycopy(rowFill, 0, s.rowFill, 0, stackHeight);
+        board.copyTo(s.board, stackHeight);
+        s.stackHeight = stackHeight;
+        s.boardHash = boardHash;
+        s.pieceHash = pieceHash;
+        s.curPiece = curPiece;
+        s.curX = curX;
+        s.curY = curY;
+        s.started = started;
+        s.over = over;
+        s.atBottom = atBottom;
+        s.score = score;
+        s.pieces = pieces;
+        s.garbage = garbage;
+        s.ticks = ticks;
+        s.holes = holes.getState();
+        generator.saveState(s.generator, 0);
+    }
+
+    /**
+     * Puts the game back the way it was when a snapshot was saved
+     * @param s snapshot saved from this engine
+     */
+    public void restore(Snapshot s) {
+
+        // rows the stack has grown into since the save must be emptied
+        int stale = Math.max(stackHeight, s.stackHeight);
+        System.arraycopy(s.rows, 0, rows, 0, s.stackHeight);
+        System.arraycopy(s.rowFill, 0, rowFill, 0, s.stackHeight);
+        s.board.copyTo(board, s.stackHeight);
+        Arrays.fill(rows, s.stackHeight, stale, 0);
+        Arrays.fill(rowFill, s.stackHeight, stale, 0);
+        board.clearRows(s.stackHeight, stale);
+        stackHeight = s.stackHeight;
+        boardHash = s.boardHash;
+        pieceHash = s.pieceHash;
+        curPiece = s.curPiece;
+        curX = s.curX;
+        curY = s.curY;
+        started = s.started;
+        over = s.over;
+        atBottom = s.atBottom;
+        score = s.score;
+        pieces = s.pieces;
+        garbage = s.garbage;
+        ticks = s.ticks;
+        holes.setState(s.holes);
+        generator.loadState(s.generator, 0);
+        updateColumnHeights();
+        markDirty(0, 0, width - 1, height - 1);
+    }
+
+    /**
+     * Zobrist hash of the occupied cells and the falling piece, updated as
+     * the game changes rather than worked out from the board. Games with
+     * the same cells occupied and the same piece in the same place have
+     * the same hash, whatever the score or piece colors
+     * @return long hash
+     */
+    public long getHash() {
+        return boardHash ^ pieceHash;
+    }
+
+    /**
+     * Works out the hash from the whole board, to check getHash
+     * @return long hash
+     */
+    public long fullHash() {
+        return fullBoardHash() ^ pieceKey(curPiece, curX, curY);
+    }
+
+    /**
+     * Makes step compare the incremental hash with a full one, and the
+     * column heights with the rows, and throw IllegalStateException if
+     * they differ. Also turned on for every
+     * engine by the system property tetris.verifyHash
+     * @param verify true to check after every step
+     */
+    public void setVerifyHash(boolean verify) {
+        verifyHash = verify;
+    }
+
+    /**
+     * Hash of every occupied cell
+     * @return long hash
+     */
+    private long fullBoardHash() {
+        return boardHash(rows, stackHeight);
+    }
+
+    /**
+     * Hash of the occupied cells of a board given as rows, matches the
+     * board part of getHash
+     * @param rows occupied cells, one bit per column for each row
+     * @param stackHeight rows at or above this one are empty
+     * @return long hash
+     */
+    static long boardHash(long[] rows, int stackHeight) {
+        long h = 0;
+        for (int y = 0; y < stackHeight; ++y) {
+            h ^= rowHash(y, rows[y]);
+        }
+        return h;
+    }
+
+    /**
+     * Hash of the occupied cells of one row
+     * @param y row
+     * @param bits occupied columns
+     * @return long xor of the keys of the cells
+     */
+    static long rowHash(int y, long bits) {
+        long h = 0;
+        for (; bits != 0; bits &= bits - 1) {
+            h ^= cellKey(Long.numberOfTrailingZeros(bits), y);
+        }
+        return h;
+    }
+
+    /**
+     * Zobrist key of an occupied cell. Keys are mixed from the cell's
+     * number instead of kept in a table, so tall boards need no memory
+     * @param x column
+     * @param y row
+     * @return long key
+     */
+    static long cellKey(int x, int y) {
+        return SplitMix.mix(((long) y << 6 | x) * 0x9E3779B97F4A7C15L + cellSalt);
+    }
+
+    /**
+     * Zobrist key of the falling piece
+     * @param p tetromino shape and rotation
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return long key, 0 for no piece
+     */
+    private static long pieceKey(Piece p, int x, int y) {
+        if (p.getPiece() == Tetris.emptyPiece) {
+            return 0;
+        }
+        long id = ((long) (p.getPiece().ordinal() << 2 | p.getRotation()) << 56) ^ ((long) x << 32) ^ (y & 0xFFFFFFFFL);
+        return SplitMix.mix(id * 0x9E3779B97F4A7C15L + pieceSalt);
+    }
+
+    /**
+     * Shapes of the pieces that come after the falling one, without
+     * taking them from the generator
+     * @param dst filled with the next dst.length shapes
+     */
+    public void preview(Tetris[] dst) {
+        long[] state = previewState;
+        generator.saveState(state, 0);
+        for (int i = 0; i < dst.length; ++i) {
+            dst[i] = generator.next();
+        }
+        generator.loadState(state, 0);
+    }
+
+    /**
+     * Queues garbage lines sent by another player, they are pushed in
+     * under the stack when a piece next locks without clearing a line
+     * @param lines number of lines
+     */
+    public void addGarbage(int lines) {
+        if (started && lines > 0) {
+            garbage += lines;
+        }
+    }
+
+    /**
+     * Getter for garbage lines waiting to come in
+     * @return int lines
+     */
+    public int getGarbage() {
+        return garbage;
+    }
+
+    /**
+     * Writes the whole game state, so a game can be continued from this
+     * point with readState. Only rows up to the stack are written, and
+     * garbage of versus games is left out as replays never have any
+     * @param out where to write
+     * @throws IOException if out fails
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeBoolean(started);
+        out.writeBoolean(over);
+        out.writeBoolean(atBottom);
+        out.writeInt(score);
+        out.writeInt(pieces);
+        out.writeLong(ticks);
+        out.writeByte(curPiece.getPiece().ordinal());
+        out.writeByte(curPiece.getRotation());
+        out.writeInt(curX);
+        out.writeInt(curY);
+        out.writeInt(stackHeight);
+        for (int y = 0; y < stackHeight; ++y) {
+            out.writeLong(rows[y]);
+        }
+
+        // colors only matter for occupied cells
+        for (int y = 0; y < stackHeight; ++y) {
+            for (long bits = rows[y]; bits != 0; bits &= bits - 1) {
+                out.writeByte(board.get(Long.numberOfTrailingZeros(bits), y).ordinal());
+            }
+        }
+        generator.writeState(out);
+    }
+
+    /**
+     * Continues a game from a state written by writeState on an engine of
+     * the same size and generator kind
+     * @param in where to read
+     * @throws IOException if in fails or the state doesn't fit this board
+     */
+    public void readState(DataInput in) throws IOException {
+        boolean newStarted = in.readBoolean();
+        boolean newOver = in.readBoolean();
+        boolean newAtBottom = in.readBoolean();
+        int newScore = in.readInt();
+        int newPieces = in.readInt();
+        long newTicks = in.readLong();
+        int shape = in.readUnsignedByte();
+        int rotation = in.readUnsignedByte();
+        int newX = in.readInt();
+        int newY = in.readInt();
+        int newStack = in.readInt();
+        if (shape >= shapes.length || newStack < 0 || newStack > height) {
+            throw new IOException("Bad game state");
+        }
+
+        clear();
+        for (int y = 0; y < newStack; ++y) {
+            rows[y] = in.readLong();
+            if ((rows[y] & ~fullRow()) != 0) {
+                throw new IOException("Bad game state");
+            }
+            rowFill[y] = Long.bitCount(rows[y]);
+        }
+        stackHeight = newStack;
+        for (int y = 0; y < newStack; ++y) {
+            for (long bits = rows[y]; bits != 0; bits &= bits - 1) {
+                int c = in.readUnsignedByte();
+                if (c == 0 || c >= shapes.length) {
+                    throw new IOException("Bad game state");
+                }
+                board.set(Long.numberOfTrailingZeros(bits), y, shapes[c]);
+            }
+        }
+        generator.readState(in);
+
+        started = newStarted;
+        over = newOver;
+        atBottom = newAtBottom;
+        score = newScore;
+        pieces = newPieces;
+        ticks = newTicks;
+        curPiece = Piece.of(shapes[shape], rotation);
+        curX = newX;
+        curY = newY;
+        boardHash = fullBoardHash();
+        pieceHash = pieceKey(curPiece, curX, curY);
+        updateColumnHeights();
+        markDirty(0, 0, width - 1, height - 1);
+    }
+
+    /**
+     * Mask of a row with every column occupied
+     * @return long one bit per column
+     */
+    private long fullRow() {
+        return width == 64 ? -1L : (1L << width) - 1;
+    }
+
+    /**
+     * Checks if a game is running
+     * @return boolean
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Checks if the last game ended with a full board
+     * @return boolean
+     */
+    public boolean isOver() {
+        return over;
+    }
+
+    /**
+     * Checks if a piece fits at a position without overlapping the board
+     * @param newPiece tetromino shape
+     * @param newX x coordinate
+     * @param newY y coordinate
+     * @return boolean
+     */
+    public boolean fits(Piece newPiece, int newX, int newY) {
+        return fits(rows, width, height, newPiece, newX, newY);
+    }
+
+    /**
+     * Checks if a piece fits at a position on a board given as rows, so
+     * searches can try moves on boards of their own
+     * @param rows occupied cells, one bit per column for each row, rows
+     * past the end of the array are empty
+     * @param width number of columns
+     * @param height number of rows
+     * @param newPiece tetromino shape
+     * @param newX x coordinate
+     * @param newY y coordinate
+     * @return boolean
+     */
+    public static boolean fits(long[] rows, int width, int height, Piece newPiece, int newX, int newY) {
+
+        // check if piece has room to attempt move
+        if (newX + newPiece.minX() < 0 || newX + newPiece.maxX() >= width
+                || newY - newPiece.maxY() < 0 || newY - newPiece.minY() >= height) {
+            return false;
+        }
+
+        // try move one piece row at a time
+        int shift = newX + newPiece.minX();
+        int top = newY - newPiece.minY();
+        for (int j = 0; j < newPiece.maskRows(); ++j) {
+            if (top - j < rows.length && (rows[top - j] & (newPiece.rowMask(j) << shift)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if space is already occupied and moves the piece there if not
+     * @param newPiece tetromino shape
+     * @param newX x coordinate
+     * @param newY y coordinate
+     * @return boolean
+     */
+    private boolean move(Piece newPiece, int newX, int newY) {
+        if (!fits(newPiece, newX, newY)) {
+            return false;
+        }
+
+        // set new piece
+        markDirty(curPiece, curX, curY);
+        markDirty(newPiece, newX, newY);
+        curPiece = newPiece;
+        curX = newX;
+        curY = newY;
+        pieceHash = pieceKey(newPiece, newX, newY);
+        return true;
+    }
+
+    /**
+     * Drops piece one line down
+     * @return true if the piece moved or was dropped
+     */
+    private boolean moveOneLineDown() {
+        if (!move(curPiece, curX, curY - 1)) {
+            pieceDropped();
+        }
+        return true;
+    }
+
+    /**
+     * Clears board of all pieces
+     */
+    private void clear() {
+        // rows above the stack are already empty
+        Arrays.fill(rows, 0, stackHeight, 0);
+        Arrays.fill(rowFill, 0, stackHeight, 0);
+        board.clearRows(0, stackHeight);
+        stackHeight = 0;
+        boardHash = 0;
+        Arrays.fill(columnHeights, 0);
+        markDirty(0, 0, width - 1, height - 1);
+    }
+
+    /**
+     * Removes full lines among the rows the last piece landed in
+     * @param low lowest row of the piece
+     * @param high highest row of the piece
+     */
+    private void removeFullLines(int low, int high) {
+        int lines = 0;
+        int first = -1;
+
+        // only rows the piece landed in can have become full
+        for (int i = low; i <= high; ++i) {
+            if (rowFill[i] == width) {
+                ++lines;
+                if (first < 0) {
+                    first = i;
+                }
+            }
+        }
+        if (lines == 0) {
+            return;
+        }
+
+        // every row above a removed line moves down
+        markDirty(0, first, width - 1, stackHeight - 1);
+
+        // rows from the first removed one up change place, take them out of the hash
+        for (int y = first; y < stackHeight; ++y) {
+            boardHash ^= rowHash(y, rows[y]);
+        }
+
+        // move each run of kept rows down in one block copy
+        int dst = first;
+        int src = first;
+        while (src < stackHeight) {
+            if (rowFill[src] == width) {
+                ++src;
+                continue;
+            }
+            int runStart = src;
+            while (src < stackHeight && rowFill[src] != width) {
+                ++src;
+            }
+            int run = src - runStart;
+            System.arraycopy(rows, runStart, rows, dst, run);
+            System.arraycopy(rowFill, runStart, rowFill, dst, run);
+            board.moveRows(runStart, dst, run);
+            dst += run;
+        }
+
+        // empty the rows left at the top of the stack
+        Arrays.fill(rows, dst, stackHeight, 0);
+        Arrays.fill(rowFill, dst, stackHeight, 0);
+        board.clearRows(dst, stackHeight);
+        stackHeight = dst;
+        for (int y = first; y < stackHeight; ++y) {
+            boardHash ^= rowHash(y, rows[y]);
+        }
+        updateColumnHeights();
+
+        // add removed lines to score
+        score += lines;
+        atBottom = true;
+        markDirty(curPiece, curX, curY);
+        curPiece = Piece.of(Tetris.emptyPiece);
+        pieceHash = 0;
+    }
+
+    /**
+     * Checks if a line is full
+     */
+    private void pieceDropped() {
+        int shift = curX + curPiece.minX();
+        int top = curY - curPiece.minY();
+        for (int j = 0; j < curPiece.maskRows(); ++j) {
+            long mask = curPiece.rowMask(j);
+            rows[top - j] |= mask << shift;
+            rowFill[top - j] += Long.bitCount(mask);
+        }
+        for (int i = 0; i < 4; ++i) {
+            int x = curX + curPiece.adjustX(i);
+            int y = curY - curPiece.adjustY(i);
+            board.set(x, y, curPiece.getPiece());
+            boardHash ^= cellKey(x, y);
+            columnHeights[x] = Math.max(columnHeights[x], y + 1);
+        }
+        stackHeight = Math.max(stackHeight, top + 1);
+        ++pieces;
+        removeFullLines(curY - curPiece.maxY(), top);
+
+        // check if piece is at the bottom
+        if (!atBottom) {
+            raiseGarbage();
+            if (!over) {
+                newPiece();
+            }
+        }
+    }
+
+    /**
+     * Pushes the waiting garbage lines in under the stack, each batch
+     * with one open column, and ends the game if they don't fit
+     */
+    private void raiseGarbage() {
+        int n = garbage;
+        if (n == 0) {
+            return;
+        }
+        garbage = 0;
+        if (stackHeight + n > height) {
+            markDirty(curPiece, curX, curY);
+            curPiece = Piece.of(Tetris.emptyPiece);
+            pieceHash = 0;
+            started = false;
+            over = true;
+            return;
+        }
+
+        System.arraycopy(rows, 0, rows, n, stackHeight);
+        System.arraycopy(rowFill, 0, rowFill, n, stackHeight);
+        board.moveRows(0, n, stackHeight);
+        int hole = holes.nextInt(width);
+        long row = fullRow() & ~(1L << hole);
+        for (int y = 0; y < n; ++y) {
+            rows[y] = row;
+            rowFill[y] = width - 1;
+            board.fillRow(y, garbageShape);
+            board.set(hole, y, Tetris.emptyPiece);
+        }
+        stackHeight += n;
+
+        // every row moved up, so the hash is worked out again
+        boardHash = fullBoardHash();
+        updateColumnHeights();
+        markDirty(0, 0, width - 1, stackHeight - 1);
+    }
+
+    /**
+     * Picks new piece to drop next
+     */
+    private void newPiece() {
+
+        // pick next piece
+        curPiece = Piece.of(generator.next());
+        curX = spawnX(width);
+        curY = spawnY(curPiece, height);
+
+        gameOver();
+    }
+
+    /**
+     * Column new pieces appear in
+     * @param width number of columns
+     * @return int x coordinate
+     */
+    public static int spawnX(int width) {
+        return width / 2 + 1;
+    }
+
+    /**
+     * Row new pieces appear in, touching the top of the board
+     * @param p tetromino shape
+     * @param height number of rows
+     * @return int y coordinate
+     */
+    public static int spawnY(Piece p, int height) {
+        return height - 1 + p.minY();
+    }
+
+    /**
+     * Logic for when game is over
+     */
+    private void gameOver() {
+
+        // check if board is full
+        if (!move(curPiece, curX, curY)) {
+            curPiece = Piece.of(Tetris.emptyPiece);
+            pieceHash = 0;
+            started = false;
+            over = true;
+        }
+    }
+
+    /**
+     * Drops piece into lowest position
+     */
+    private void instantDrop() {
+        int newY = dropY(curPiece, curX, curY);
+        if (newY != curY) {
+            move(curPiece, curX, newY);
+        }
+        pieceDropped();
+    }
+
+    /**
+     * Row a piece comes to rest in if it falls straight down from a
+     * position it fits in. Worked out from the column heights alone unless
+     * the piece is tucked under an overhang
+     * @param p tetromino shape
+     * @param x x coordinate
+     * @param y y coordinate the piece falls from
+     * @return int y coordinate it lands at
+     */
+    public int dropY(Piece p, int x, int y) {
+
+        // lowest row where every column of the piece is clear of the stack
+        int landY = p.maxY();
+        int left = x + p.minX();
+        for (int k = 0; k <= p.maxX() - p.minX(); ++k) {
+            landY = Math.max(landY, columnHeights[left + k] + p.bottom(k));
+        }
+        if (landY <= y) {
+            return landY;
+        }
+
+        // below the skyline only the rows themselves tell where it stops
+        while (fits(p, x, y - 1)) {
+            --y;
+        }
+        return y;
+    }
+
+    /**
+     * Getter for the height of one column
+     * @param x column
+     * @return int row above the highest occupied cell, 0 if it is empty
+     */
+    public int getColumnHeight(int x) {
+        return columnHeights[x];
+    }
+
+    /**
+     * Works out the column heights from the rows, after rows moved
+     */
+    private void updateColumnHeights() {
+        long covered = 0;
+        long full = fullRow();
+        for (int y = stackHeight - 1; y >= 0 && covered != full; --y) {
+            for (long bits = rows[y] & ~covered; bits != 0; bits &= bits - 1) {
+                columnHeights[Long.numberOfTrailingZeros(bits)] = y + 1;
+            }
+            covered |= rows[y];
+        }
+
+        // columns with no occupied cell
+        for (long bits = full & ~covered; bits != 0; bits &= bits - 1) {
+            columnHeights[Long.numberOfTrailingZeros(bits)] = 0;
+        }
+    }
+
+    /**
+     * Checks the column heights against the rows, for the verify mode
+     * @return boolean
+     */
+    private boolean skylineMatches() {
+        for (int x = 0; x < width; ++x) {
+            int h = stackHeight;
+            while (h > 0 && (rows[h - 1] >>> x & 1) == 0) {
+                --h;
+            }
+            if (columnHeights[x] != h) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
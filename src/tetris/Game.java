@@ -18,7 +18,7 @@ public class Game extends JFrame implements ActionListener {
     private final ImageIcon logo = new ImageIcon("tetris.png");
 
     /** buttons for game navigation */
-    private JButton start, help, helpBack, settings, settingsBack, highscores, highscoresBack;
+    private JButton start, help, helpBack, settings, settingsBack, highscores, highscoresBack, replays;
 
     /** settings radio buttons **/
     private JRadioButton easyButton, mediumButton, hardButton;
@@ -26,18 +26,30 @@ public class Game extends JFrame implements ActionListener {
     /** color radio buttons */
     private JRadioButton defaultColors, dullColors, blackAndWhiteColors, fallColors, springColors, blackColors;
 
+    /** autoplay check box */
+    private JCheckBox autoplayBox;
+
     /** speed of timer */
     private int speed = 400;
 
     /** current player name */
     private String playerName;
 
-    /** high scores array **/
-    private String[][] highScores = new String[10][2];
+    /** reads and writes files off the Swing thread, shared by every game */
+    private static final Storage storage = new Storage(new File("."));
+
+    /** high scores table, shared by every game */
+    private static final Leaderboard leaderboard = new Leaderboard(Storage.tableSize);
+
+    /** used to load the high scores only once */
+    private static boolean scoresLoaded = false;
 
     /** color selector */
     private int color;
 
+    /** used to let the bot play */
+    private boolean autoplay = false;
+
     /**
      * Default constructor to create game
      */
@@ -57,6 +69,14 @@ public class Game extends JFrame implements ActionListener {
      * Starts the game
      */
     private void startGame() {
+        startGame(null);
+    }
+
+    /**
+     * Starts a game or plays back a replay
+     * @param replay replay to watch, null to play a new game
+     */
+    private void startGame(ReplayPlayer replay) {
 
         JFrame f = new JFrame();
 
@@ -73,11 +93,27 @@ public class Game extends JFrame implements ActionListener {
         scorebar.setHorizontalAlignment(JLabel.CENTER);
         scorebar.setFont(new Font("Arial Black", Font.PLAIN, 20));
 
-        Board board = new Board(this);
+        Board board = new Board(this, replay);
         f.add(board);
         board.start();
     }
 
+    /**
+     * Asks for a replay file and plays it back
+     */
+    private void replayMenu() {
+        JFileChooser chooser = new JFileChooser(new File("replays"));
+        if (chooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            startGame(ReplayPlayer.load(chooser.getSelectedFile()));
+        } catch (IOException | RuntimeException e) {
+            JOptionPane.showMessageDialog(null, "Can't play replay: " + e.getMessage(),
+                    "Replays", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     /**
      * Loads help menu window
      */
@@ -191,6 +227,15 @@ public class Game extends JFrame implements ActionListener {
         buttonPanel.add(springColors);
         buttonPanel.add(blackColors);
 
+        JTextField botLabel = new JTextField("Bot");
+        botLabel.setEditable(false);
+        botLabel.setFont(new Font("Arial Black", Font.PLAIN, 16));
+        buttonPanel.add(botLabel);
+
+        autoplayBox = new JCheckBox("Autoplay");
+        autoplayBox.setSelected(autoplay);
+        buttonPanel.add(autoplayBox);
+
         easyButton.addActionListener(this);
         mediumButton.addActionListener(this);
         hardButton.addActionListener(this);
@@ -201,6 +246,7 @@ public class Game extends JFrame implements ActionListener {
         fallColors.addActionListener(this);
         springColors.addActionListener(this);
         blackColors.addActionListener(this);
+        autoplayBox.addActionListener(this);
 
         if (speed == 100) {
             hardButton.setSelected(true);
@@ -256,18 +302,27 @@ public class Game extends JFrame implements ActionListener {
 
         scoreTextArea.setFont(new Font("Arial Black", Font.PLAIN, 16));
 
-        for (int j = 0; j < highScores.length; j++) {
-            for (int k = 0; k < 2; k++) {
-                scoreTextArea.append(highScores[j][k]);
-                if ( k==0 ) {
-                    scoreTextArea.append(": ");
-                } else {
-                    scoreTextArea.append("\n");
-                }
+        // one consistent copy even if games are ending right now
+        Leaderboard.Entry[] top = leaderboard.snapshot();
+        for (int j = 0; j < leaderboard.getCapacity(); j++) {
+            if (j < top.length) {
+                scoreTextArea.append(top[j].getName() + ": " + top[j].getScore() + "\n");
+            } else {
+                scoreTextArea.append("---: 0\n");
             }
-
         }
 
+        // rank among every score ever played is looked up in the background
+        String name = playerName;
+        storage.query(db -> {
+            int best = db.bestOf(name);
+            if (best < 0) {
+                return "\n" + db.size() + " scores played";
+            }
+            return String.format("%n%s: best %d, rank %d of %d, better than %.1f%%",
+                    name, best, db.rankOf(name), db.size(), db.percentile(best - 1));
+        }).thenAccept(text -> SwingUtilities.invokeLater(() -> scoreTextArea.append(text)));
+
         scoresPanel.add(scoreTextArea);
         highScoresWindow.add(scoresPanel);
 
@@ -314,6 +369,9 @@ public class Game extends JFrame implements ActionListener {
         highscores = new JButton("High Scores");
         highscores.setPreferredSize(new Dimension(100, 40));
 
+        replays = new JButton("Replays");
+        replays.setPreferredSize(new Dimension(100, 40));
+
         loadScores();
 
         f.add(title, BorderLayout.NORTH);
@@ -323,12 +381,14 @@ public class Game extends JFrame implements ActionListener {
         p.add(help);
         p.add(settings);
         p.add(highscores);
+        p.add(replays);
         f.add(p);
 
         start.addActionListener(this);
         help.addActionListener(this);
         settings.addActionListener(this);
         highscores.addActionListener(this);
+        replays.addActionListener(this);
     }
 
     /**
@@ -372,65 +432,43 @@ public class Game extends JFrame implements ActionListener {
     }
 
     /**
-     * Loads scores from file to keep track of high scores
+     * Checks if the bot should play
+     * @return boolean autoplay
      */
-    private void loadScores() {
-
-        String csvFile = "highscores.dat";
-        String line = "";
-        String csvSplitBy = ",";
-        int rowCounter = 0;
-
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-
-            while ((line = br.readLine()) != null) {
-
-                // use comma as separator
-                String[] tempScores = line.split(csvSplitBy);
-                for (int colCounter = 0; colCounter < tempScores.length; colCounter++) {
-                    highScores[rowCounter][colCounter] = tempScores[colCounter];
-                }
-                rowCounter++;
-            }
+    public boolean getAutoplay() {
+        return autoplay;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Loads scores from file in the background to keep track of high scores
+     */
+    private void loadScores() {
+        if (scoresLoaded) {
+            return;
         }
-
-        sortScores(highScores);
+        scoresLoaded = true;
+        storage.loadScores().thenAccept(table -> {
+            for (String[] row : table) {
+                leaderboard.submit(row[0], Integer.parseInt(row[1]));
+            }
+        });
     }
 
-    private static void sortScores(String[][] arr) {
-        int n = arr.length;
-
-        // run bubble sort on this 2d array based on the values in the 2nd column!
-        for (int i = 0; i < n - 1; i++) {
-            for (int j = 0; j < n - i - 1; j++) {
-                if (Integer.parseInt(arr[j][1]) < Integer.parseInt(arr[j + 1][1])) {
-                    String[] temp = new String[2];
-
-                    // names and scores
-                    for (int k = 0; k < temp.length; k++) {
-                        temp[k] = arr[j][k];
-                    }
-                    for (int k = 0; k < temp.length; k++) {
-                        arr[j][k] = arr[j + 1][k];
-                    }
-                    for (int k = 0; k < temp.length; k++) {
-                        arr[j + 1][k] = temp[k];
-                    }
-                }
-            }
-        }
+    /**
+     * Getter for the file store
+     * @return Storage store shared by every game
+     */
+    public Storage getStorage() {
+        return storage;
     }
 
 
     /**
      * Getter for high scores
-     * @return speed of timer
+     * @return Leaderboard table shared by every game
      */
-    public String[][] getScores(){
-        return highScores;
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
     }
 
     /**
@@ -452,6 +490,9 @@ public class Game extends JFrame implements ActionListener {
         if (e.getSource() == highscores) {
             highScoresMenu();
         }
+        if (e.getSource() == replays) {
+            replayMenu();
+        }
         if (e.getSource() == settingsBack) {
             settingsWindow.dispose();
         }
@@ -488,6 +529,9 @@ public class Game extends JFrame implements ActionListener {
         if (e.getSource() == blackColors) {
             setColorNum(5);
         }
+        if (e.getSource() == autoplayBox) {
+            autoplay = autoplayBox.isSelected();
+        }
     }
 
     /**
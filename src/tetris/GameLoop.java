@@ -0,0 +1,232 @@
+package tetris;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed timestep loop on its own thread. Logic ticks run at a fixed
+ * interval measured with System.nanoTime, and a render pass is requested
+ * at most once per frame with the fraction of the next tick that has
+ * already passed, so drawing can be smooth while logic stays on time.
+ */
+public class GameLoop implements Runnable {
+
+    /**
+     * Receives ticks and render passes from the loop thread
+     */
+    interface Listener {
+
+        /**
+         * Runs one fixed logic step
+         */
+        void tick();
+
+        /**
+         * Draws a frame
+         * @param alpha fraction of the next tick already passed, 0 to 1
+         */
+        void render(double alpha);
+
+        /**
+         * Handles player input, called on every pass of the loop and after wake
+         * @param now current System.nanoTime
+         * @return long System.nanoTime to be called again by, Long.MAX_VALUE
+         * if only new input matters
+         */
+        default long input(long now) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /** most ticks run back to back before the loop gives up catching up */
+    private static final int maxCatchUp = 5;
+
+    /** object told about ticks and frames */
+    private final Listener listener;
+
+    /** time between logic ticks */
+    private final long tickNanos;
+
+    /** shortest time between render passes */
+    private final long frameNanos;
+
+    /** how late each tick ran compared to its schedule */
+    private final TimingStats tickLateness = new TimingStats();
+
+    /** time between render passes */
+    private final TimingStats frameTimes = new TimingStats();
+
+    /** ticks skipped because the loop fell too far behind, written by the loop thread */
+    private volatile long droppedTicks = 0;
+
+    /** render passes skipped because the loop was late, written by the loop thread */
+    private volatile long droppedFrames = 0;
+
+    /** loop thread, null when not started */
+    private volatile Thread thread;
+
+    /** used to stop the loop */
+    private volatile boolean running = false;
+
+    /** used to know if ticks are paused */
+    private volatile boolean paused = false;
+
+    /**
+     * Creates a loop, call start to run it
+     * @param listener object told about ticks and frames
+     * @param tickMillis time between logic ticks
+     * @param maxFps most render passes per second
+     */
+    public GameLoop(Listener listener, int tickMillis, int maxFps) {
+        this.listener = listener;
+        tickNanos = tickMillis * 1000000L;
+        frameNanos = 1000000000L / maxFps;
+    }
+
+    /**
+     * Starts the loop thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        paused = false;
+        thread = new Thread(this, "tetris-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop thread after the current tick
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Pauses or resumes ticks, the tick schedule restarts on resume
+     * @param p true to pause
+     */
+    public void setPaused(boolean p) {
+        paused = p;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Makes the loop handle input now instead of when it next wakes up
+     */
+    public void wake() {
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Checks if the loop is paused
+     * @return boolean
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Getter for tick lateness statistics
+     * @return TimingStats lateness of each tick
+     */
+    public TimingStats getTickLateness() {
+        return tickLateness;
+    }
+
+    /**
+     * Getter for frame time statistics
+     * @return TimingStats time between render passes
+     */
+    public TimingStats getFrameTimes() {
+        return frameTimes;
+    }
+
+    /**
+     * Getter for ticks skipped because the loop fell too far behind
+     * @return long ticks
+     */
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    /**
+     * Getter for render passes skipped because the loop was late
+     * @return long frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Loop body, runs on the loop thread
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long nextTick = now + tickNanos;
+        long nextFrame = now;
+        long lastFrame = now;
+
+        while (running) {
+            now = System.nanoTime();
+
+            // sleep while paused and start a fresh schedule afterwards
+            if (paused) {
+                LockSupport.park(this);
+                now = System.nanoTime();
+                nextTick = now + tickNanos;
+                nextFrame = now;
+                lastFrame = now;
+                continue;
+            }
+
+            // input first so moves land before the tick that may lock the piece
+            long nextInput = listener.input(now);
+
+            // run every tick that is due
+            int ticks = 0;
+            while (now - nextTick >= 0 && ticks < maxCatchUp && running) {
+                tickLateness.record(now - nextTick);
+                listener.tick();
+                nextTick += tickNanos;
+                ++ticks;
+            }
+
+            // too far behind, drop the missed ticks instead of spiralling
+            if (now - nextTick >= 0) {
+                droppedTicks = droppedTicks + (now - nextTick) / tickNanos + 1;
+                nextTick = now + tickNanos;
+            }
+
+            // render at most once per frame
+            if (now - nextFrame >= 0) {
+                double alpha = 1.0 - (double) (nextTick - now) / tickNanos;
+                listener.render(Math.max(0, Math.min(1, alpha)));
+                frameTimes.record(now - lastFrame);
+                lastFrame = now;
+                nextFrame += frameNanos;
+                if (now - nextFrame >= 0) {
+                    droppedFrames = droppedFrames + (now - nextFrame) / frameNanos + 1;
+                    nextFrame = now + frameNanos;
+                }
+            }
+
+            // sleep until the next tick, frame or key repeat is due
+            long wait = Math.min(Math.min(nextTick, nextFrame), nextInput) - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+}
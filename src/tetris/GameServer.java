@@ -0,0 +1,404 @@
+package tetris;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server that hosts many headless games in one process. Games are ticked
+ * by a TickScheduler with one thread per core, and every player connects
+ * over a local TCP socket handled by a single non-blocking thread, so the
+ * number of games is bounded by CPU rather than by threads. Bot games can
+ * be added to put the server under load, and the sessions per core and
+ * how late ticks run are printed every few seconds.
+ * <p>
+ * The protocol is one ASCII command per line. A move (left, right,
+ * rotateLeft, rotateRight, softDrop, hardDrop), state or new is answered
+ * with a state line: "state ticks score pieces playing|over x y shape
+ * rotation". quit closes the connection, anything else is answered with
+ * an error line.
+ * <p>
+ * With -spectators port, every game can also be watched live through a
+ * SpectatorBroadcaster on that port.
+ */
+public class GameServer {
+
+    /** longest command line accepted */
+    private static final int lineLimit = 256;
+
+    /** most reply bytes held for a client that isn't reading */
+    private static final int outLimit = 64 * 1024;
+
+    /** engine inputs a player may send, ticks come from the server */
+    private static final Engine.Input[] moves = {Engine.Input.left, Engine.Input.right,
+            Engine.Input.rotateLeft, Engine.Input.rotateRight, Engine.Input.softDrop, Engine.Input.hardDrop};
+
+    /**
+     * One connected player
+     */
+    private static final class Client {
+
+        /** game of this player */
+        final Session session;
+
+        /** bytes read but not yet part of a whole line */
+        final ByteBuffer in = ByteBuffer.allocate(lineLimit);
+
+        /** replies not yet written, in write mode */
+        final ByteBuffer out = ByteBuffer.allocate(outLimit);
+
+        /** used to close the connection once the replies are written */
+        boolean closing = false;
+
+        Client(Session session) {
+            this.session = session;
+        }
+    }
+
+    /** local port to listen on */
+    private int port = 7777;
+
+    /** bot games started with the server */
+    private int bots = 0;
+
+    /** tick worker threads */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** time between gravity ticks */
+    private int speed = 300;
+
+    /** local port for spectators, 0 for none */
+    private int spectatorPort = 0;
+
+    /** streams games to spectators, null if there are none */
+    private SpectatorBroadcaster broadcaster;
+
+    /** seconds between reports */
+    private int reportSeconds = 5;
+
+    /** seed of the first game, game i uses seed + i */
+    private long seed = System.nanoTime();
+
+    /** ticks every game */
+    private TickScheduler scheduler;
+
+    /** next session number */
+    private final AtomicInteger ids = new AtomicInteger();
+
+    /** connected players */
+    private final AtomicInteger clients = new AtomicInteger();
+
+    /** ticks run before the last report */
+    private long lastTicks = 0;
+
+    /** bytes sent to spectators before the last report */
+    private long lastBytes = 0;
+
+    /** time of the last report */
+    private long lastReport = System.nanoTime();
+
+    /**
+     * Starts the bot games and the reports, then serves players until the
+     * process is stopped
+     * @throws IOException if the port can't be opened
+     */
+    void serve() throws IOException {
+        scheduler = new TickScheduler(threads);
+        if (spectatorPort != 0) {
+            broadcaster = new SpectatorBroadcaster(spectatorPort);
+            broadcaster.start();
+        }
+        for (int i = 0; i < bots; ++i) {
+            int id = ids.getAndIncrement();
+            scheduler.add(watchable(new Session(id, seed + id, speed, new Bot(new Heuristic(), null))));
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tetris-report");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(this::report, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+        Selector selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        System.out.println("Serving games on " + server.getLocalAddress() + " with " + threads + " tick threads");
+
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(server, selector);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(key);
+                    }
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a player and starts their game
+     * @param server listening channel
+     * @param selector selector of the network thread
+     * @throws IOException if the connection can't be set up
+     */
+    private void accept(ServerSocketChannel server, Selector selector) throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        int id = ids.getAndIncrement();
+        Client c = new Client(new Session(id, seed + id, speed, null));
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ, c);
+        clients.incrementAndGet();
+        scheduler.add(watchable(c.session));
+        Engine engine = c.session.getEngine();
+        reply(key, "hello " + id + " " + engine.getWidth() + " " + engine.getHeight());
+    }
+
+    /**
+     * Offers a session to spectators if they are being served
+     * @param s session
+     * @return Session the same session
+     */
+    private Session watchable(Session s) {
+        if (broadcaster != null) {
+            s.setFeed(broadcaster.add(s.getId(), s.getEngine()));
+        }
+        return s;
+    }
+
+    /**
+     * Reads what a player sent and answers every whole line
+     * @param key key of the player's channel
+     * @throws IOException if the connection failed
+     */
+    private void read(SelectionKey key) throws IOException {
+        Client c = (Client) key.attachment();
+        if (((SocketChannel) key.channel()).read(c.in) < 0) {
+            close(key);
+            return;
+        }
+
+        // answer each whole line, keep the start of the next one
+        c.in.flip();
+        int start = 0;
+        for (int i = c.in.position(); i < c.in.limit(); ++i) {
+            if (c.in.get(i) == '\n') {
+                String line = new String(c.in.array(), start, i - start, StandardCharsets.US_ASCII).trim();
+                start = i + 1;
+                if (!line.isEmpty()) {
+                    reply(key, command(c, line));
+                }
+                if (!key.isValid()) {
+                    return;
+                }
+            }
+        }
+        c.in.position(start);
+        c.in.compact();
+        if (!c.in.hasRemaining()) {
+            close(key);
+        }
+    }
+
+    /**
+     * Runs one command
+     * @param c player who sent it
+     * @param line command
+     * @return String reply line
+     */
+    private String command(Client c, String line) {
+        switch (line) {
+            case "state":
+                break;
+            case "new":
+                c.session.restart();
+                break;
+            case "quit":
+                c.closing = true;
+                return "bye";
+            default:
+                Engine.Input move = null;
+                for (Engine.Input m : moves) {
+                    if (m.name().equals(line)) {
+                        move = m;
+                    }
+                }
+                if (move == null) {
+                    return "error unknown command " + line;
+                }
+                c.session.input(move);
+                break;
+        }
+        return "state " + c.session.describe();
+    }
+
+    /**
+     * Queues a reply line and writes as much as the socket takes
+     * @param key key of the player's channel
+     * @param line reply without the line end
+     * @throws IOException if the connection failed
+     */
+    private void reply(SelectionKey key, String line) throws IOException {
+        Client c = (Client) key.attachment();
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+
+        // a player that stops reading is dropped instead of buffered forever
+        if (bytes.length > c.out.remaining()) {
+            close(key);
+            return;
+        }
+        c.out.put(bytes);
+        flush(key);
+    }
+
+    /**
+     * Writes queued replies, and waits for the socket to take the rest
+     * @param key key of the player's channel
+     * @throws IOException if the connection failed
+     */
+    private void flush(SelectionKey key) throws IOException {
+        Client c = (Client) key.attachment();
+        c.out.flip();
+        ((SocketChannel) key.channel()).write(c.out);
+        c.out.compact();
+        if (c.out.position() > 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else if (c.closing) {
+            close(key);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Drops a player and stops their game
+     * @param key key of the player's channel
+     */
+    private void close(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        key.cancel();
+        Session s = ((Client) key.attachment()).session;
+        s.close();
+        if (broadcaster != null) {
+            broadcaster.remove(s.getId());
+        }
+        clients.decrementAndGet();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    /**
+     * Prints sessions per core, tick rate and how late ticks ran since the
+     * last report
+     */
+    private void report() {
+        long now = System.nanoTime();
+        long ticks = scheduler.getTicks();
+        int sessions = scheduler.getSessions();
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("sessions=%d players=%d cores=%d sessions/core=%.1f ticks/s=%.0f dropped=%d tickLateness %s%n",
+                sessions, clients.get(), cores, (double) sessions / cores,
+                (ticks - lastTicks) / ((now - lastReport) / 1e9), scheduler.getDroppedTicks(),
+                scheduler.takeLateness());
+        if (broadcaster != null) {
+            System.out.printf("spectators=%d frames=%d snapshots=%d sent=%.1fKB/s%n", broadcaster.getViewers(),
+                    broadcaster.getFramesSent(), broadcaster.getSnapshots(),
+                    (broadcaster.getBytesSent() - lastBytes) / 1024.0 / ((now - lastReport) / 1e9));
+            lastBytes = broadcaster.getBytesSent();
+        }
+        lastTicks = ticks;
+        lastReport = now;
+    }
+
+    /**
+     * Reads command line options
+     * @param args options
+     */
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-bots":
+                    bots = Integer.parseInt(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-speed":
+                    speed = Integer.parseInt(args[++i]);
+                    break;
+                case "-spectators":
+                    spectatorPort = Integer.parseInt(args[++i]);
+                    break;
+                case "-report":
+                    reportSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (threads < 1 || speed < 1 || reportSeconds < 1 || bots < 0) {
+            throw new IllegalArgumentException("threads, speed and report must be positive");
+        }
+    }
+
+    /**
+     * Main method to run the server
+     * @param args -port p -bots n -threads t -speed ms -spectators port -report seconds -seed s
+     * @throws IOException if the port can't be opened
+     */
+    public static void main(String[] args) throws IOException {
+        GameServer server = new GameServer();
+        try {
+            server.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java tetris.GameServer [-port p] [-bots n] [-threads t] [-speed ms]"
+                    + " [-spectators port] [-report seconds] [-seed s]");
+            System.exit(1);
+        }
+        server.serve();
+    }
+}
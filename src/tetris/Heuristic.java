@@ -0,0 +1,81 @@
+package tetris;
+
+/**
+ * Scores a board after a piece lands, higher is better. The score is a
+ * weighted sum of aggregate column height, lines cleared, holes and
+ * bumpiness, all computed straight from the row bitmasks.
+ */
+public class Heuristic {
+
+    /** weight of the sum of column heights */
+    private final double heightWeight;
+
+    /** weight of lines cleared by the placement */
+    private final double linesWeight;
+
+    /** weight of empty cells with a filled cell above them */
+    private final double holesWeight;
+
+    /** weight of the height differences between neighbouring columns */
+    private final double bumpinessWeight;
+
+    /**
+     * Default constructor. Uses weights tuned for standard size boards
+     */
+    public Heuristic() {
+        this(-0.510066, 0.760666, -0.35663, -0.184483);
+    }
+
+    /**
+     * Creates a heuristic with custom weights
+     * @param heightWeight weight of aggregate height
+     * @param linesWeight weight of lines cleared
+     * @param holesWeight weight of holes
+     * @param bumpinessWeight weight of bumpiness
+     */
+    public Heuristic(double heightWeight, double linesWeight, double holesWeight, double bumpinessWeight) {
+        this.heightWeight = heightWeight;
+        this.linesWeight = linesWeight;
+        this.holesWeight = holesWeight;
+        this.bumpinessWeight = bumpinessWeight;
+    }
+
+    /**
+     * Scores a board
+     * @param rows occupied cells, one bit per column for each row
+     * @param stackHeight rows at or above this one are empty
+     * @param width number of columns
+     * @param lines lines cleared by the placement
+     * @param heights scratch array at least width long
+     * @return double score, higher is better
+     */
+    public double score(long[] rows, int stackHeight, int width, int lines, int[] heights) {
+        long covered = 0;
+        int holes = 0;
+        for (int x = 0; x < width; ++x) {
+            heights[x] = 0;
+        }
+
+        // walk down from the top, a column's height is the first row it shows up in
+        for (int y = stackHeight - 1; y >= 0; --y) {
+            long row = rows[y];
+            holes += Long.bitCount(covered & ~row);
+            long fresh = row & ~covered;
+            while (fresh != 0) {
+                heights[Long.numberOfTrailingZeros(fresh)] = y + 1;
+                fresh &= fresh - 1;
+            }
+            covered |= row;
+        }
+
+        int aggregate = heights[0];
+        int bumpiness = 0;
+        for (int x = 1; x < width; ++x) {
+            aggregate += heights[x];
+            bumpiness += Math.abs(heights[x] - heights[x - 1]);
+        }
+
+        return heightWeight * aggregate + linesWeight * lines
+                + holesWeight * holes + bumpinessWeight * bumpiness;
+    }
+}
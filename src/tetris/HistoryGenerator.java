@@ -0,0 +1,145 @@
+package tetris;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import tetris.Piece.Tetris;
+
+/**
+ * History generator. Remembers the last four shapes and rolls again, up to
+ * a fixed number of times, when the roll is one of them, which makes
+ * repeats rare without fixing the order like a bag does.
+ */
+public class HistoryGenerator implements PieceGenerator {
+
+    /** all shapes, emptyPiece is index 0 */
+    private static final Tetris[] shapes = Tetris.values();
+
+    /** most rolls for one piece */
+    private static final int rolls = 6;
+
+    /** source of random numbers */
+    private final SplitMix random;
+
+    /** ordinals of the last four shapes, starts with S and Z so the first piece is easy */
+    private final int[] history = {
+            Tetris.zPiece.ordinal(), Tetris.sPiece.ordinal(), Tetris.zPiece.ordinal(), Tetris.sPiece.ordinal()
+    };
+
+    /** oldest entry in history, replaced next */
+    private int oldest = 0;
+
+    /**
+     * Creates a generator
+     * @param seed starting state of the random numbers
+     */
+    public HistoryGenerator(long seed) {
+        random = new SplitMix(seed);
+    }
+
+    @Override
+    public Tetris next() {
+        int shape = 0;
+        for (int r = 0; r < rolls; ++r) {
+            shape = random.nextInt(shapes.length - 1) + 1;
+            if (!inHistory(shape)) {
+                break;
+            }
+        }
+        history[oldest] = shape;
+        oldest = (oldest + 1) % history.length;
+        return shapes[shape];
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(random.getState());
+        for (int shape : history) {
+            out.writeByte(shape);
+        }
+        out.writeByte(oldest);
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException {
+        long state = in.readLong();
+
+        // same layout as saveState, so one check covers both
+        long packed = 0;
+        int any = 0;
+        for (int i = 0; i <= history.length; ++i) {
+            int b = in.readUnsignedByte();
+            any |= b;
+            packed |= (long) (b & 15) << 4 * i;
+        }
+        if (any > 15 || !isValid(packed)) {
+            throw new IOException("Bad game state");
+        }
+        unpack(state, packed);
+    }
+
+    @Override
+    public void saveState(long[] dst, int offset) {
+
+        // four bits per shape, then the oldest entry
+        long packed = oldest;
+        for (int i = history.length - 1; i >= 0; --i) {
+            packed = packed << 4 | history[i];
+        }
+        dst[offset] = random.getState();
+        dst[offset + 1] = packed;
+    }
+
+    @Override
+    public void loadState(long[] src, int offset) {
+        if (!isValid(src[offset + 1])) {
+            throw new IllegalArgumentException("Bad generator state");
+        }
+        unpack(src[offset], src[offset + 1]);
+    }
+
+    /**
+     * Checks that a packed state only remembers real shapes and its
+     * oldest entry is inside the history
+     * @param packed four bits per shape, then the oldest entry
+     * @return boolean
+     */
+    private static boolean isValid(long packed) {
+        for (int i = 0; i < 4; ++i) {
+            int shape = (int) (packed >>> 4 * i & 15);
+            if (shape < 1 || shape >= shapes.length) {
+                return false;
+            }
+        }
+        return packed >>> 16 < 4;
+    }
+
+    /**
+     * Sets the whole state from a checked packed state
+     * @param state random number state
+     * @param packed four bits per shape, then the oldest entry
+     */
+    private void unpack(long state, long packed) {
+        random.setState(state);
+        for (int i = 0; i < history.length; ++i) {
+            history[i] = (int) (packed & 15);
+            packed >>>= 4;
+        }
+        oldest = (int) packed;
+    }
+
+    /**
+     * Checks if a shape is one of the last four
+     * @param shape shape ordinal
+     * @return boolean
+     */
+    private boolean inHistory(int shape) {
+        for (int h : history) {
+            if (h == shape) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,100 @@
+package tetris;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free queue of key events from one producer thread to one consumer
+ * thread. Events are kept in a fixed ring of primitive arrays, so passing
+ * one allocates nothing. Each event is a control number, whether the key
+ * went down or up, and the System.nanoTime it happened at.
+ */
+public class InputQueue {
+
+    /** number of slots, a power of two */
+    private final int capacity;
+
+    /** capacity - 1, to wrap positions into the ring */
+    private final int mask;
+
+    /** control and key state of each slot, control * 2 + 1 for a press */
+    private final int[] codes;
+
+    /** time of each slot */
+    private final long[] times;
+
+    /** next slot to write, only written by the producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** next slot to read, only written by the consumer */
+    private final AtomicLong head = new AtomicLong();
+
+    /** tail as last seen by the producer's own writes */
+    private long producerTail = 0;
+
+    /** head as last seen by the consumer's own reads */
+    private long consumerHead = 0;
+
+    /** time of the event last returned by poll */
+    private long polledTime;
+
+    /**
+     * Creates an empty queue
+     * @param capacity most events held, rounded up to a power of two
+     */
+    public InputQueue(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = this.capacity - 1;
+        codes = new int[this.capacity];
+        times = new long[this.capacity];
+    }
+
+    /**
+     * Adds an event, only called by the producer thread
+     * @param control control number, not negative
+     * @param pressed true when the key went down
+     * @param nanos when it happened, from System.nanoTime
+     * @return false if the queue was full and the event was dropped
+     */
+    public boolean offer(int control, boolean pressed, long nanos) {
+        long t = producerTail;
+        if (t - head.get() == capacity) {
+            return false;
+        }
+        int slot = (int) t & mask;
+        codes[slot] = control * 2 + (pressed ? 1 : 0);
+        times[slot] = nanos;
+
+        // ordered store publishes the slot before the new tail
+        producerTail = t + 1;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest event, only called by the consumer thread
+     * @return int control * 2 + 1 for a press or control * 2 for a release,
+     * -1 if the queue is empty
+     */
+    public int poll() {
+        long h = consumerHead;
+        if (h == tail.get()) {
+            return -1;
+        }
+        int slot = (int) h & mask;
+        int code = codes[slot];
+        polledTime = times[slot];
+
+        // slot may be reused once the new head is seen
+        consumerHead = h + 1;
+        head.lazySet(h + 1);
+        return code;
+    }
+
+    /**
+     * Time of the event last returned by poll, only called by the consumer
+     * @return long System.nanoTime of the event
+     */
+    public long polledTime() {
+        return polledTime;
+    }
+}
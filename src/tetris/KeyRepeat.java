@@ -0,0 +1,105 @@
+package tetris;
+
+/**
+ * Delayed auto shift and auto repeat for a group of keys where only the
+ * last one pressed repeats, such as left and right. A held key acts once
+ * when pressed, again after the delay, then once every repeat interval.
+ * Times come from the key events, so repeats land where they should even
+ * if the thread asking for them runs late.
+ */
+public class KeyRepeat {
+
+    /** time from the press to the first repeat */
+    private final long delayNanos;
+
+    /** time between repeats */
+    private final long repeatNanos;
+
+    /** keys of the group being held */
+    private final boolean[] down;
+
+    /** key repeating, -1 for none */
+    private int active = -1;
+
+    /** when the active key acts next */
+    private long next;
+
+    /**
+     * Creates a group of keys
+     * @param keys number of keys in the group
+     * @param delayNanos time from the press to the first repeat
+     * @param repeatNanos time between repeats, at least 1
+     */
+    public KeyRepeat(int keys, long delayNanos, long repeatNanos) {
+        down = new boolean[keys];
+        this.delayNanos = delayNanos;
+        this.repeatNanos = Math.max(1, repeatNanos);
+    }
+
+    /**
+     * A key went down, repeated presses from the system's own key repeat
+     * are ignored
+     * @param key key in the group
+     * @param nanos when it went down
+     * @return true if the key should act now
+     */
+    public boolean press(int key, long nanos) {
+        if (down[key]) {
+            return false;
+        }
+        down[key] = true;
+        active = key;
+        next = nanos + delayNanos;
+        return true;
+    }
+
+    /**
+     * A key went up, a key still held takes over, starting its delay again
+     * @param key key in the group
+     * @param nanos when it went up
+     */
+    public void release(int key, long nanos) {
+        down[key] = false;
+        if (active != key) {
+            return;
+        }
+        active = -1;
+        for (int k = 0; k < down.length; ++k) {
+            if (down[k]) {
+                active = k;
+                next = nanos + delayNanos;
+            }
+        }
+    }
+
+    /**
+     * Releases every key
+     */
+    public void releaseAll() {
+        for (int k = 0; k < down.length; ++k) {
+            down[k] = false;
+        }
+        active = -1;
+    }
+
+    /**
+     * Takes one repeat that is due
+     * @param now current time
+     * @return int key to act again, -1 if nothing is due
+     */
+    public int due(long now) {
+        if (active < 0 || now - next < 0) {
+            return -1;
+        }
+        next += repeatNanos;
+        return active;
+    }
+
+    /**
+     * Time the next repeat is due
+     * @return long System.nanoTime, Long.MAX_VALUE if no key repeats
+     */
+    public long deadline() {
+        return active < 0 ? Long.MAX_VALUE : next;
+    }
+}
@@ -0,0 +1,142 @@
+package tetris;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations with buckets that grow with the value, so every
+ * recorded value is kept to within about 1.5% from nanoseconds up to
+ * several minutes in a fixed array. Recording never allocates. Not thread
+ * safe, each histogram is written and read by one thread.
+ */
+public class LatencyHistogram {
+
+    /** bits of precision kept for each power of two */
+    private static final int subBits = 6;
+
+    /** buckets in each power of two */
+    private static final int subCount = 1 << subBits;
+
+    /** values below this get one bucket each */
+    private static final int linear = subCount * 2;
+
+    /** values at or above 2 to this power are counted in the last bucket */
+    private static final int maxBits = 40;
+
+    /** number of samples in each bucket */
+    private final long[] counts = new long[index((1L << maxBits) - 1) + 1];
+
+    /** number of samples */
+    private long count;
+
+    /** largest sample */
+    private long max;
+
+    /**
+     * Adds one sample
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long v = Math.max(0, Math.min(nanos, (1L << maxBits) - 1));
+        ++counts[index(v)];
+        ++count;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    /**
+     * Forgets all samples
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    /**
+     * Adds every sample of another histogram to this one
+     * @param other histogram to add, not changed
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Getter for number of samples
+     * @return long count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Largest sample
+     * @return double milliseconds
+     */
+    public double getMaxMillis() {
+        return max / 1e6;
+    }
+
+    /**
+     * Value below which a share of the samples fall
+     * @param p percentile from 0 to 100
+     * @return double milliseconds, 0 if there are no samples
+     */
+    public double getPercentileMillis(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long want = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= want) {
+
+                // middle of the bucket, but never above the largest sample
+                long v = Math.min(max, (lowest(i) + lowest(i + 1) - 1) / 2);
+                return v / 1e6;
+            }
+        }
+        return max / 1e6;
+    }
+
+    /**
+     * Bucket of a value
+     * @param v value, not negative and below 2 to the maxBits
+     * @return int bucket index
+     */
+    private static int index(long v) {
+        if (v < linear) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - subBits;
+        return linear + (shift - 1) * subCount + (int) ((v >>> shift) - subCount);
+    }
+
+    /**
+     * Smallest value of a bucket
+     * @param i bucket index
+     * @return long value
+     */
+    private static long lowest(int i) {
+        if (i < linear) {
+            return i;
+        }
+        int shift = (i - linear) / subCount + 1;
+        return (long) ((i - linear) % subCount + subCount) << shift;
+    }
+
+    /**
+     * Shows the percentiles players notice
+     * @return String count, p50, p99, p99.9 and max
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms", count,
+                getPercentileMillis(50), getPercentileMillis(99), getPercentileMillis(99.9), getMaxMillis());
+    }
+}
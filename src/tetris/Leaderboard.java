@@ -0,0 +1,239 @@
+package tetris;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Best scores of every game in this process, safe to use from any number
+ * of threads without locks. The table is an immutable sorted array swapped
+ * in with compare and set, so readers always see a whole table and a
+ * score too low to get in is turned away without writing anything.
+ */
+public class Leaderboard {
+
+    /**
+     * One row of the table
+     */
+    public static final class Entry {
+
+        /** player name */
+        private final String name;
+
+        /** score */
+        private final int score;
+
+        /** order the score was submitted in, earlier wins ties */
+        private final long sequence;
+
+        Entry(String name, int score, long sequence) {
+            this.name = name;
+            this.score = score;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Getter for player name
+         * @return String name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Getter for score
+         * @return int score
+         */
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * Checks if this entry ranks above another
+         * @param o other entry
+         * @return boolean
+         */
+        boolean beats(Entry o) {
+            return score > o.score || (score == o.score && sequence < o.sequence);
+        }
+    }
+
+    /** most rows kept */
+    private final int capacity;
+
+    /** rows best first, never changed once published */
+    private final AtomicReference<Entry[]> table = new AtomicReference<>(new Entry[0]);
+
+    /** next submission number */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** compare and set attempts that lost to another thread */
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * Creates an empty table
+     * @param capacity most rows kept
+     */
+    public Leaderboard(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Submits a score
+     * @param name player name
+     * @param score score
+     * @return true if the score made it into the table
+     */
+    public boolean submit(String name, int score) {
+        Entry e = new Entry(name == null ? "" : name, score, sequence.getAndIncrement());
+        while (true) {
+            Entry[] cur = table.get();
+            int n = cur.length;
+
+            // most scores are too low, so turn them away before copying
+            if (n == capacity && !e.beats(cur[n - 1])) {
+                return false;
+            }
+
+            int at = n;
+            while (at > 0 && e.beats(cur[at - 1])) {
+                --at;
+            }
+            Entry[] next = new Entry[Math.min(n + 1, capacity)];
+            System.arraycopy(cur, 0, next, 0, at);
+            next[at] = e;
+            System.arraycopy(cur, at, next, at + 1, next.length - at - 1);
+            if (table.compareAndSet(cur, next)) {
+                return true;
+            }
+            retries.increment();
+        }
+    }
+
+    /**
+     * Gets a consistent copy of the table
+     * @return Entry[] rows best first
+     */
+    public Entry[] snapshot() {
+        return table.get().clone();
+    }
+
+    /**
+     * Lowest score in the table
+     * @return int score, or Integer.MIN_VALUE if the table isn't full
+     */
+    public int threshold() {
+        Entry[] cur = table.get();
+        return cur.length < capacity ? Integer.MIN_VALUE : cur[cur.length - 1].score;
+    }
+
+    /**
+     * Getter for most rows kept
+     * @return int capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of compare and set attempts that lost to another thread
+     * @return long retries
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Submits random scores from many threads at once while other threads
+     * keep reading snapshots, then checks the table against a sort of
+     * every score submitted
+     * @param args [submissions per thread]
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int readers = 4;
+        for (int threads : new int[]{1, 8, 64, 256, 512}) {
+            Leaderboard board = new Leaderboard(Storage.tableSize);
+            int[][] scores = new int[threads][perThread];
+            for (int t = 0; t < threads; ++t) {
+                SplitMix random = new SplitMix(t);
+                for (int i = 0; i < perThread; ++i) {
+
+                    // scores climb slowly so the table keeps changing
+                    scores[t][i] = random.nextInt(1000 + i) * 100;
+                }
+            }
+
+            CountDownLatch go = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(threads);
+            LongAdder reads = new LongAdder();
+            LongAdder torn = new LongAdder();
+            List<Thread> all = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                int id = t;
+                all.add(new Thread(() -> {
+                    String name = "t" + id;
+                    await(go);
+                    for (int s : scores[id]) {
+                        board.submit(name, s);
+                    }
+                    done.countDown();
+                }));
+            }
+            for (int r = 0; r < readers; ++r) {
+                all.add(new Thread(() -> {
+                    await(go);
+                    while (done.getCount() > 0) {
+                        Entry[] snap = board.snapshot();
+                        for (int i = 1; i < snap.length; ++i) {
+                            if (snap[i].beats(snap[i - 1])) {
+                                torn.increment();
+                            }
+                        }
+                        reads.increment();
+                    }
+                }));
+            }
+            for (Thread th : all) {
+                th.start();
+            }
+            long start = System.nanoTime();
+            go.countDown();
+            done.await();
+            long nanos = System.nanoTime() - start;
+            for (Thread th : all) {
+                th.join();
+            }
+
+            // the table must hold exactly the best scores submitted
+            int[] every = Arrays.stream(scores).flatMapToInt(Arrays::stream).sorted().toArray();
+            Entry[] snap = board.snapshot();
+            boolean right = snap.length == Math.min(every.length, board.getCapacity());
+            for (int i = 0; right && i < snap.length; ++i) {
+                right = snap[i].getScore() == every[every.length - 1 - i];
+            }
+
+            long submitted = (long) threads * perThread;
+            System.out.printf("submitters=%d submits=%d time=%.1fms submits/s=%.0f retries=%d reads=%d torn=%d %s%n",
+                    threads, submitted, nanos / 1e6, submitted / (nanos / 1e9), board.getRetries(),
+                    reads.sum(), torn.sum(), right ? "ok" : "WRONG");
+        }
+    }
+
+    /**
+     * Waits for a latch, for the benchmark threads
+     * @param latch latch to wait for
+     */
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
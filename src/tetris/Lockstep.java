@@ -0,0 +1,254 @@
+package tetris;
+
+import java.util.Arrays;
+
+/**
+ * Runs a versus match in lockstep with other peers, rolling back when an
+ * input arrives late. Every peer simulates every player. Frames are played
+ * as soon as the local input is known, with no move guessed for players
+ * whose input hasn't arrived. When a real input turns out different from
+ * the guess, the match is restored from the snapshot of that frame and
+ * played forward again. A peer never runs more than the rollback window
+ * ahead of the slowest input it has, it waits instead.
+ */
+public class Lockstep {
+
+    /** inputs by ordinal */
+    private static final Engine.Input[] allInputs = Engine.Input.values();
+
+    /** match being played */
+    private final VersusMatch match;
+
+    /** snapshot of the start of each frame in the window */
+    private final SnapshotRing ring;
+
+    /** player on this peer */
+    private final int local;
+
+    /** most frames rolled back, and frames of input kept */
+    private final int window;
+
+    /** input of each player by frame modulo the window, guessed if not confirmed */
+    private final byte[][] inputs;
+
+    /** last frame whose input is known for each player, -1 for none */
+    private final int[] confirmed;
+
+    /** inputs of the frame being played */
+    private final Engine.Input[] frameInputs;
+
+    /** earliest frame played with a wrong guess, Integer.MAX_VALUE for none */
+    private int rollbackTo = Integer.MAX_VALUE;
+
+    /** number of rollbacks and frames played again because of them */
+    private long rollbacks = 0;
+    private long replayedFrames = 0;
+
+    /**
+     * Creates a peer of a match
+     * @param match match to play, at frame 0
+     * @param local player on this peer
+     * @param window most frames rolled back
+     */
+    public Lockstep(VersusMatch match, int local, int window) {
+        this.match = match;
+        this.local = local;
+        this.window = window;
+        ring = new SnapshotRing(match, window + 1);
+
+        // inputs may arrive up to a window ahead of a rollback a window back
+        inputs = new byte[match.getPlayers()][2 * window + 2];
+        confirmed = new int[match.getPlayers()];
+        Arrays.fill(confirmed, -1);
+        frameInputs = new Engine.Input[match.getPlayers()];
+    }
+
+    /**
+     * Checks if the next frame can be played without going further ahead
+     * of the slowest player than a rollback can undo
+     * @return boolean
+     */
+    public boolean canAdvance() {
+        return match.getFrame() - slowest() < window;
+    }
+
+    /**
+     * Plays the next frame with the local player's input, rolling back
+     * first if a late input showed an earlier frame was guessed wrong
+     * @param input local player's move, none for no move
+     */
+    public void advance(Engine.Input input) {
+        int frame = match.getFrame();
+        inputs[local][frame % inputs[local].length] = (byte) input.ordinal();
+        confirmed[local] = frame;
+        rollBack();
+
+        // guess no move for players not heard from yet
+        for (int p = 0; p < inputs.length; ++p) {
+            if (confirmed[p] < frame) {
+                inputs[p][frame % inputs[p].length] = (byte) Engine.Input.none.ordinal();
+            }
+        }
+        play();
+    }
+
+    /**
+     * Takes another player's input, in frame order
+     * @param player player it came from
+     * @param frame frame it belongs to
+     * @param input the player's move
+     * @return false if it isn't the next frame expected from that player
+     */
+    public boolean receive(int player, int frame, Engine.Input input) {
+        if (frame != confirmed[player] + 1 || frame - slowest() > window) {
+            return false;
+        }
+        int slot = frame % inputs[player].length;
+        if (frame < match.getFrame() && inputs[player][slot] != input.ordinal()) {
+            rollbackTo = Math.min(rollbackTo, frame);
+        }
+        inputs[player][slot] = (byte) input.ordinal();
+        confirmed[player] = frame;
+        return true;
+    }
+
+    /**
+     * Applies a pending rollback without playing a new frame, so the match
+     * is up to date with every input received
+     */
+    public void settle() {
+        rollBack();
+    }
+
+    /**
+     * Plays again from the earliest wrongly guessed frame up to now
+     */
+    private void rollBack() {
+        if (rollbackTo == Integer.MAX_VALUE) {
+            return;
+        }
+        int now = match.getFrame();
+        if (!ring.restore(match, rollbackTo)) {
+            throw new IllegalStateException("Frame " + rollbackTo + " is outside the rollback window");
+        }
+        ++rollbacks;
+        replayedFrames += now - rollbackTo;
+        rollbackTo = Integer.MAX_VALUE;
+        while (match.getFrame() < now) {
+            play();
+        }
+    }
+
+    /**
+     * Saves the start of the current frame and plays it
+     */
+    private void play() {
+        int frame = match.getFrame();
+        for (int p = 0; p < inputs.length; ++p) {
+            frameInputs[p] = allInputs[inputs[p][frame % inputs[p].length]];
+        }
+        ring.save(match);
+        match.step(frameInputs);
+    }
+
+    /**
+     * Last frame whose input is known for every player
+     * @return int frame, -1 if none
+     */
+    public int slowest() {
+        int min = Integer.MAX_VALUE;
+        for (int c : confirmed) {
+            min = Math.min(min, c);
+        }
+        return min;
+    }
+
+    /**
+     * Local player's input of a recent frame, to send to other peers
+     * @param frame frame within the window, not after the last advance
+     * @return Engine.Input move
+     */
+    public Engine.Input localInput(int frame) {
+        return allInputs[inputs[local][frame % inputs[local].length]];
+    }
+
+    /**
+     * Last frame whose input is known for a player
+     * @param player player number
+     * @return int frame, -1 if none
+     */
+    public int getConfirmed(int player) {
+        return confirmed[player];
+    }
+
+    /**
+     * Getter for match being played
+     * @return VersusMatch match
+     */
+    public VersusMatch getMatch() {
+        return match;
+    }
+
+    /**
+     * Getter for number of rollbacks
+     * @return long rollbacks
+     */
+    public long getRollbacks() {
+        return rollbacks;
+    }
+
+    /**
+     * Getter for frames played again because of rollbacks
+     * @return long frames
+     */
+    public long getReplayedFrames() {
+        return replayedFrames;
+    }
+
+    /**
+     * Measures how long a frame takes when a late input forces a rollback
+     * of a given depth every frame, against the 16 ms budget of a frame at
+     * 60 frames a second
+     * @param args [frames per depth]
+     */
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Engine.Input[] moves = {Engine.Input.left, Engine.Input.right, Engine.Input.rotateLeft,
+                Engine.Input.rotateRight, Engine.Input.softDrop};
+        int window = 32;
+        for (int depth : new int[]{1, 2, 4, 8, 16, 24, 30}) {
+            SplitMix random = new SplitMix(depth);
+            LatencyHistogram times = new LatencyHistogram();
+            long seed = 0;
+            long replayed = 0;
+            Lockstep peer = null;
+            for (int i = 0; i < frames; ++i) {
+                if (peer == null || peer.getMatch().isOver()) {
+                    replayed += peer == null ? 0 : peer.getReplayedFrames();
+
+                    // fresh match, the remote player starts depth frames behind
+                    peer = new Lockstep(new VersusMatch(2, "bag", ++seed, 2), 0, window);
+                    for (int f = 0; f < depth; ++f) {
+                        peer.advance(Engine.Input.none);
+                    }
+                }
+
+                // remote input for depth frames ago never matches the guess
+                int late = peer.getMatch().getFrame() - depth;
+                peer.receive(1, late, moves[random.nextInt(moves.length)]);
+                int r = random.nextInt(16);
+                Engine.Input move = r < moves.length ? moves[r] : r == 15 ? Engine.Input.hardDrop : Engine.Input.none;
+
+                long start = System.nanoTime();
+                peer.advance(move);
+                times.record(System.nanoTime() - start);
+            }
+            replayed += peer.getReplayedFrames();
+            System.out.printf("rollback=%d replayed/frame=%.1f frame time p50=%.3fms p99=%.3fms p99.9=%.3fms"
+                            + " max=%.3fms budget=16.7ms %s%n", depth, (double) replayed / frames,
+                    times.getPercentileMillis(50), times.getPercentileMillis(99),
+                    times.getPercentileMillis(99.9), times.getMaxMillis(),
+                    times.getPercentileMillis(99.9) < 1000.0 / 60 ? "fits" : "TOO SLOW");
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package tetris;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a running game. Nothing is counted here on the game's hot
+ * paths: values are read from the engine, the game loop and the paint
+ * timings only when a JMX client or the periodic dump asks for them, so
+ * the cost while nobody is looking is the paint timing alone.
+ * <p>
+ * Set the system property tetris.metrics.file to a path to have the
+ * metrics appended to it every tetris.metrics.period seconds, 10 by
+ * default.
+ */
+public class Metrics implements MetricsMBean {
+
+    /** name the metrics of the current game are published under */
+    private static final String objectName = "tetris:type=Game";
+
+    /** writes the periodic dump, null until the first game asks for it */
+    private static ScheduledExecutorService dumper;
+
+    /** metrics of the game being dumped */
+    private static volatile Metrics current;
+
+    /** game rules and board state, read under its lock */
+    private final Engine engine;
+
+    /** loop running the game */
+    private final GameLoop loop;
+
+    /** time spent in paint */
+    private final TimingStats paints;
+
+    /** when the game was set up */
+    private final long created = System.nanoTime();
+
+    /** last allocation sample, for the allocation rate */
+    private long sampleNanos = created;
+    private long sampleBytes = -1;
+    private double allocationRate = -1;
+
+    /**
+     * Creates metrics for a game
+     * @param engine game rules and board state
+     * @param loop loop running the game
+     * @param paints time spent in paint
+     */
+    public Metrics(Engine engine, GameLoop loop, TimingStats paints) {
+        this.engine = engine;
+        this.loop = loop;
+        this.paints = paints;
+    }
+
+    /**
+     * Publishes these metrics over JMX in place of the previous game's,
+     * and starts the periodic dump if it was asked for
+     */
+    public void publish() {
+        current = this;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | SecurityException e) {
+            e.printStackTrace();
+        }
+        startDump();
+    }
+
+    /**
+     * Starts appending the current game's metrics to the file named by the
+     * tetris.metrics.file property, once
+     */
+    private static synchronized void startDump() {
+        String path = System.getProperty("tetris.metrics.file");
+        if (path == null || dumper != null) {
+            return;
+        }
+        long period = Long.getLong("tetris.metrics.period", 10);
+        File file = new File(path);
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tetris-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try (Writer out = new FileWriter(file, true)) {
+                out.write(System.currentTimeMillis() + " " + current + "\n");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public double getUptimeSeconds() {
+        return (System.nanoTime() - created) / 1e9;
+    }
+
+    @Override
+    public long getTicks() {
+        return loop.getTickLateness().getCount();
+    }
+
+    @Override
+    public double getTickRate() {
+        return getTicks() / Math.max(1e-9, getUptimeSeconds());
+    }
+
+    @Override
+    public double getTickLatenessMeanMillis() {
+        return loop.getTickLateness().getMeanMillis();
+    }
+
+    @Override
+    public double getTickLatenessMaxMillis() {
+        return loop.getTickLateness().getMaxMillis();
+    }
+
+    @Override
+    public double getFrameMeanMillis() {
+        return loop.getFrameTimes().getMeanMillis();
+    }
+
+    @Override
+    public double getFrameMaxMillis() {
+        return loop.getFrameTimes().getMaxMillis();
+    }
+
+    @Override
+    public long getDroppedTicks() {
+        return loop.getDroppedTicks();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return loop.getDroppedFrames();
+    }
+
+    @Override
+    public long getPaints() {
+        return paints.getCount();
+    }
+
+    @Override
+    public double getPaintMeanMillis() {
+        return paints.getMeanMillis();
+    }
+
+    @Override
+    public double getPaintMaxMillis() {
+        return paints.getMaxMillis();
+    }
+
+    @Override
+    public int getPiecesLocked() {
+        synchronized (engine) {
+            return engine.getPieces();
+        }
+    }
+
+    @Override
+    public int getLinesCleared() {
+        synchronized (engine) {
+            return engine.getScore();
+        }
+    }
+
+    @Override
+    public double getLinesPerMinute() {
+        return getLinesCleared() / Math.max(1e-9, getUptimeSeconds() / 60);
+    }
+
+    @Override
+    public synchronized double getAllocationRateMBPerSecond() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+        if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+
+        // threads that ended since the last sample are not counted
+        long now = System.nanoTime();
+        long bytes = 0;
+        for (long b : sun.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            bytes += Math.max(0, b);
+        }
+        if (sampleBytes >= 0 && now - sampleNanos >= 1000000000L) {
+            allocationRate = Math.max(0, bytes - sampleBytes) / 1e6 / ((now - sampleNanos) / 1e9);
+        }
+        if (sampleBytes < 0 || now - sampleNanos >= 1000000000L) {
+            sampleBytes = bytes;
+            sampleNanos = now;
+        }
+        return allocationRate;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Shows every metric as name=value pairs, as written by the dump
+     * @return String metrics
+     */
+    @Override
+    public String toString() {
+        return String.format("uptime=%.1fs ticks=%d tickRate=%.2f/s tickLateMean=%.3fms tickLateMax=%.3fms"
+                        + " frameMean=%.3fms frameMax=%.3fms droppedTicks=%d droppedFrames=%d paints=%d"
+                        + " paintMean=%.3fms paintMax=%.3fms pieces=%d lines=%d linesPerMinute=%.2f"
+                        + " allocRate=%.2fMB/s heapUsed=%d",
+                getUptimeSeconds(), getTicks(), getTickRate(), getTickLatenessMeanMillis(),
+                getTickLatenessMaxMillis(), getFrameMeanMillis(), getFrameMaxMillis(), getDroppedTicks(),
+                getDroppedFrames(), getPaints(), getPaintMeanMillis(), getPaintMaxMillis(), getPiecesLocked(),
+                getLinesCleared(), getLinesPerMinute(), getAllocationRateMBPerSecond(), getHeapUsedBytes());
+    }
+}
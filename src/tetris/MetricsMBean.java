@@ -0,0 +1,110 @@
+package tetris;
+
+/**
+ * Attributes of a running game published over JMX
+ */
+public interface MetricsMBean {
+
+    /**
+     * Seconds since the game was set up
+     * @return double seconds
+     */
+    double getUptimeSeconds();
+
+    /**
+     * Timer ticks run by the game loop
+     * @return long ticks
+     */
+    long getTicks();
+
+    /**
+     * Timer ticks per second since the game was set up
+     * @return double ticks per second
+     */
+    double getTickRate();
+
+    /**
+     * Average time ticks ran after they were due
+     * @return double milliseconds
+     */
+    double getTickLatenessMeanMillis();
+
+    /**
+     * Worst time a tick ran after it was due
+     * @return double milliseconds
+     */
+    double getTickLatenessMaxMillis();
+
+    /**
+     * Average time between render passes
+     * @return double milliseconds
+     */
+    double getFrameMeanMillis();
+
+    /**
+     * Longest time between render passes
+     * @return double milliseconds
+     */
+    double getFrameMaxMillis();
+
+    /**
+     * Ticks skipped because the loop fell too far behind
+     * @return long ticks
+     */
+    long getDroppedTicks();
+
+    /**
+     * Render passes skipped because the loop was late
+     * @return long frames
+     */
+    long getDroppedFrames();
+
+    /**
+     * Number of paint calls
+     * @return long paints
+     */
+    long getPaints();
+
+    /**
+     * Average time spent in paint
+     * @return double milliseconds
+     */
+    double getPaintMeanMillis();
+
+    /**
+     * Longest time spent in paint
+     * @return double milliseconds
+     */
+    double getPaintMaxMillis();
+
+    /**
+     * Pieces locked into the board
+     * @return int pieces
+     */
+    int getPiecesLocked();
+
+    /**
+     * Lines cleared
+     * @return int lines
+     */
+    int getLinesCleared();
+
+    /**
+     * Lines cleared per minute since the game was set up
+     * @return double lines per minute
+     */
+    double getLinesPerMinute();
+
+    /**
+     * Bytes allocated per second by all threads since the last time this
+     * was read, at least a second ago
+     * @return double megabytes per second, -1 if the JVM can't tell
+     */
+    double getAllocationRateMBPerSecond();
+
+    /**
+     * Heap in use
+     * @return long bytes
+     */
+    long getHeapUsedBytes();
+}
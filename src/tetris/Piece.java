@@ -1,105 +1,163 @@
 package tetris;
 
-import java.util.Random;
 import java.lang.Math;
+import java.util.Arrays;
 
 public class Piece {
 
     /** tetrominos shapes */
     enum Tetris {emptyPiece, zPiece, sPiece, linePiece, tPiece, squarePiece, lPiece, mlPiece}
 
-    /** tetrominos shape object */
-    private Tetris pieces;
+    /** array of coordinates of created piece shapes */
+    private static final int[][][] createCoord = new int[][][]{
 
-    /** coordinates to make tetromino piece */
-    private final int[][] pieceCoords;
+            // empty shape
+            {{0, 0}, {0, 0}, {0, 0}, {0, 0}},
 
-    /**
-     * Default constructor sets pieceCoords with placeholder empty shape
-     */
-    public Piece() {
-        pieceCoords = new int[4][2];
-        setPiece(Tetris.emptyPiece);
-    }
+            // Z shape
+            {{0, -1}, {0, 0}, {-1, 0}, {-1, 1}},
 
-    /**
-     * Creates new tetromino shape
-     * @param shape tetromino shape
-     */
-    public void setPiece(Tetris shape) {
+            // S shape
+            {{0, -1}, {0, 0}, {1, 0}, {1, 1}},
 
-        /* array of coordinates of created piece shapes */
-        int[][][] createCoord = new int[][][]{
+            // Line shape
+            {{0, -1}, {0, 0}, {0, 1}, {0, 2}},
 
-                // empty shape
-                {{0, 0}, {0, 0}, {0, 0}, {0, 0}},
+            // T shape
+            {{-1, 0}, {0, 0}, {1, 0}, {0, 1}},
 
-                // Z shape
-                {{0, -1}, {0, 0}, {-1, 0}, {-1, 1}},
+            // Square shape
+            {{0, 0}, {1, 0}, {0, 1}, {1, 1}},
 
-                // S shape
-                {{0, -1}, {0, 0}, {1, 0}, {1, 1}},
+            // L shape
+            {{-1, -1}, {0, -1}, {0, 0}, {0, 1}},
 
-                // Line shape
-                {{0, -1}, {0, 0}, {0, 1}, {0, 2}},
+            // Mirrored L shape
+            {{1, -1}, {0, -1}, {0, 0}, {0, 1}}
+    };
 
-                // T shape
-                {{-1, 0}, {0, 0}, {1, 0}, {0, 1}},
+    /** every rotation state of every shape, built once when the class loads */
+    private static final Piece[][] rotations = new Piece[createCoord.length][];
 
-                // Square shape
-                {{0, 0}, {1, 0}, {0, 1}, {1, 1}},
+    static {
+        for (Tetris shape : Tetris.values()) {
 
-                // L shape
-                {{-1, -1}, {0, -1}, {0, 0}, {0, 1}},
+            // square and empty pieces don't change when rotated
+            int states = shape == Tetris.squarePiece || shape == Tetris.emptyPiece ? 1 : 4;
+            Piece[] set = new Piece[states];
 
-                // Mirrored L shape
-                {{1, -1}, {0, -1}, {0, 0}, {0, 1}}
-        };
+            int[][] coords = createCoord[shape.ordinal()];
+            for (int r = 0; r < states; r++) {
+                set[r] = new Piece(shape, r, coords);
+                coords = rotateCoords(coords);
+            }
 
-        // loop to set coordinates and build shapes
-        for (int i = 0; i < 4 ; i++) {
-            System.arraycopy(createCoord[shape.ordinal()][i], 0, pieceCoords[i], 0, 2);
+            // link rotation states so rotating is a field read
+            for (int r = 0; r < states; r++) {
+                set[r].right = set[(r + 1) % states];
+                set[r].left = set[(r + states - 1) % states];
+            }
+            rotations[shape.ordinal()] = set;
         }
+    }
 
-        // set piece
+    /** tetrominos shape object */
+    private final Tetris pieces;
+
+    /** number of right rotations from the spawn state */
+    private final int rotation;
+
+    /** coordinates to make tetromino piece */
+    private final int[][] pieceCoords;
+
+    /** bounding box of the coordinates */
+    private final int minX, maxX, minY, maxY;
+
+    /** occupied columns for each y from minY to maxY, shifted so minX is bit 0 */
+    private final long[] rowMasks;
+
+    /** largest y coordinate in each column from minX to maxX, the cell that lands first */
+    private final int[] bottoms;
+
+    /** rotation states reached by rotating this piece */
+    private Piece left, right;
+
+    /**
+     * Builds one rotation state of a shape
+     * @param shape tetromino shape
+     * @param rotation number of right rotations from spawn
+     * @param coords coordinates of the rotated shape
+     */
+    private Piece(Tetris shape, int rotation, int[][] coords) {
         pieces = shape;
+        this.rotation = rotation;
+        pieceCoords = coords;
+
+        int loX = coords[0][0], hiX = coords[0][0];
+        int loY = coords[0][1], hiY = coords[0][1];
+        for (int i = 1; i < 4; i++) {
+            loX = Math.min(loX, coords[i][0]);
+            hiX = Math.max(hiX, coords[i][0]);
+            loY = Math.min(loY, coords[i][1]);
+            hiY = Math.max(hiY, coords[i][1]);
+        }
+        minX = loX;
+        maxX = hiX;
+        minY = loY;
+        maxY = hiY;
 
+        rowMasks = new long[maxY - minY + 1];
+        for (int i = 0; i < 4; i++) {
+            rowMasks[coords[i][1] - minY] |= 1L << (coords[i][0] - minX);
+        }
+        bottoms = new int[maxX - minX + 1];
+        Arrays.fill(bottoms, Integer.MIN_VALUE);
+        for (int i = 0; i < 4; i++) {
+            int k = coords[i][0] - minX;
+            bottoms[k] = Math.max(bottoms[k], coords[i][1]);
+        }
     }
 
     /**
-     * Returns tetris piece
-     * @return Tetris piece object
+     * Turns coordinates a quarter turn to the right
+     * @param coords coordinates to rotate
+     * @return new coordinates
      */
-    public Tetris getPiece() {
-        return pieces;
+    private static int[][] rotateCoords(int[][] coords) {
+        int[][] rotated = new int[4][2];
+        for (int i = 0; i < 4; ++i) {
+            rotated[i][0] = -coords[i][1];
+            rotated[i][1] = coords[i][0];
+        }
+        return rotated;
     }
 
     /**
-     * Chooses a random tetromino piece
+     * Gets the spawn state of a tetromino shape
+     * @param shape tetromino shape
+     * @return Piece shared piece for the shape
      */
-    public void pickRandomPiece() {
-        Random rand = new Random();
-        int x = rand.nextInt(Integer.MAX_VALUE) % 7 + 1;
-        Tetris[] num = Tetris.values();
-        setPiece(num[x]);
+    public static Piece of(Tetris shape) {
+        return rotations[shape.ordinal()][0];
     }
 
     /**
-     * Used to adjust x coordinates when piece is rotated
-     * @param i old x coordinate
-     * @param x new x coordinate
+     * Gets a rotation state of a tetromino shape
+     * @param shape tetromino shape
+     * @param rotation right rotations from the spawn state
+     * @return Piece shared piece for the shape and rotation
      */
-    private void changeX(int i, int x) {
-        pieceCoords[i][0] = x;
+    public static Piece of(Tetris shape, int rotation) {
+        Piece[] set = rotations[shape.ordinal()];
+        return set[rotation % set.length];
     }
 
     /**
-     * Used to adjust y coordinates when piece is rotated
-     * @param i old y coordinate
-     * @param y nre y coordinate
+     * Returns tetris piece
+     * @return Tetris piece object
      */
-    private void changeY(int i, int y) {
-        pieceCoords[i][1] = y;
+    public Tetris getPiece() {
+        return pieces;
     }
 
     /**
@@ -120,60 +178,86 @@ public class Piece {
         return pieceCoords[i][1];
     }
 
+    /**
+     * Getter for rotation state
+     * @return int right rotations from the spawn state
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
     /**
      * Rotates the tetromino to the right
-     * @return Tetris rotPiece the new piece coordinates
+     * @return Piece the rotated state
      */
     public Piece rotateRight() {
+        return right;
+    }
 
-        // square piece doesn't change when rotated
-        if (pieces == Tetris.squarePiece) {
-            return this;
-        }
+    /**
+     * Rotates the tetromino to the left
+     * @return Piece the rotated state
+     */
+    public Piece rotateLeft() {
+        return left;
+    }
 
-        Piece rotPiece = new Piece();
-        rotPiece.pieces = pieces;
+    /**
+     * Sets where the piece starts from the top based on the size of the piece
+     * @return int min the minimum top-position
+     */
+    public int minY() {
+        return minY;
+    }
 
-        // change coordinates of shape from rotation
-        for (int i = 0; i < 4; ++i) {
-            rotPiece.changeX(i, -adjustY(i));
-            rotPiece.changeY(i, adjustX(i));
-        }
-        return rotPiece;
+    /**
+     * Largest y coordinate of the piece
+     * @return int max y
+     */
+    public int maxY() {
+        return maxY;
     }
 
     /**
-     * Rotates the tetromino to the left
-     * @return Tetris rotPiece the new piece coordinates
+     * Smallest x coordinate of the piece
+     * @return int min x
      */
-    public Piece rotateLeft() {
+    public int minX() {
+        return minX;
+    }
 
-        // square piece doesn't change when rotated
-        if (pieces == Tetris.squarePiece) {
-            return this;
-        }
+    /**
+     * Largest x coordinate of the piece
+     * @return int max x
+     */
+    public int maxX() {
+        return maxX;
+    }
 
-        Piece rotPiece = new Piece();
-        rotPiece.pieces = pieces;
+    /**
+     * Occupied columns of one row of the piece
+     * @param j row index, 0 is the row at minY
+     * @return long mask with minX at bit 0
+     */
+    public long rowMask(int j) {
+        return rowMasks[j];
+    }
 
-        // change coordinates of shape from rotation
-        for (int i = 0; i < 4; ++i) {
-            rotPiece.changeX(i, adjustY(i));
-            rotPiece.changeY(i, -adjustX(i));
-        }
-        return rotPiece;
+    /**
+     * Largest y coordinate of the piece in one of its columns, the cell
+     * that comes to rest first when it falls
+     * @param k column index, 0 is the column at minX
+     * @return int y coordinate
+     */
+    public int bottom(int k) {
+        return bottoms[k];
     }
 
     /**
-     * Sets where the piece starts from the top based on the size of the piece
-     * @return int min the minimum top-position
+     * Number of rows the piece covers
+     * @return int rows from minY to maxY
      */
-    public int minY()
-    {
-        int min = pieceCoords[0][1];
-        for (int i = 0; i < 4; i++) {
-            min = Math.min(min, pieceCoords[i][1]);
-        }
-        return min;
+    public int maskRows() {
+        return rowMasks.length;
     }
-}
\ No newline at end of file
+}
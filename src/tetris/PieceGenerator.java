@@ -0,0 +1,90 @@
+package tetris;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Chooses the shape of each new piece. Implementations use a seeded
+ * SplitMix so a game can be played again from its seed.
+ */
+public interface PieceGenerator {
+
+    /** longs written by saveState */
+    int stateLongs = 2;
+
+    /**
+     * Chooses the next shape
+     * @return Tetris shape, never emptyPiece
+     */
+    Tetris next();
+
+    /**
+     * Writes everything needed to continue the sequence from this point
+     * @param out where to write
+     * @throws IOException if out fails
+     */
+    void writeState(DataOutput out) throws IOException;
+
+    /**
+     * Continues the sequence from a state written by writeState, the
+     * generator is left as it was if the state is bad
+     * @param in where to read
+     * @throws IOException if in fails or the state is not one writeState writes
+     */
+    void readState(DataInput in) throws IOException;
+
+    /**
+     * Copies everything needed to continue the sequence into an array,
+     * without allocating, for snapshots taken every frame
+     * @param dst array to write stateLongs longs to
+     * @param offset first index written
+     */
+    void saveState(long[] dst, int offset);
+
+    /**
+     * Continues the sequence from a state copied by saveState
+     * @param src array holding the state
+     * @param offset first index read
+     * @throws IllegalArgumentException if the state is not one saveState copies
+     */
+    void loadState(long[] src, int offset);
+
+    /**
+     * Checks a generator name without creating a generator, for option
+     * parsing
+     * @param kind name to check
+     * @throws IllegalArgumentException if no generator has that name
+     */
+    static void checkKind(String kind) {
+        switch (kind) {
+            case "uniform":
+            case "bag":
+            case "history":
+                return;
+            default:
+                throw new IllegalArgumentException("Unknown piece generator " + kind);
+        }
+    }
+
+    /**
+     * Creates a generator by name
+     * @param kind uniform, bag or history
+     * @param seed starting state of the random numbers
+     * @return PieceGenerator new generator
+     */
+    static PieceGenerator create(String kind, long seed) {
+        switch (kind) {
+            case "uniform":
+                return new UniformGenerator(seed);
+            case "bag":
+                return new BagGenerator(seed);
+            case "history":
+                return new HistoryGenerator(seed);
+            default:
+                throw new IllegalArgumentException("Unknown piece generator " + kind);
+        }
+    }
+}
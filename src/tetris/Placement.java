@@ -0,0 +1,100 @@
+package tetris;
+
+/**
+ * One place a piece can land: how far it falls before rotating, the
+ * rotation state, the column it is moved to and the row it drops to, with
+ * the score the bot gave it.
+ */
+public class Placement {
+
+    /** rotation state of the piece */
+    private final Piece piece;
+
+    /** rows the piece falls before it is rotated */
+    private final int drops;
+
+    /** right rotations needed from the spawn state, 3 is done as one left rotation */
+    private final int rotations;
+
+    /** landing position */
+    private final int x;
+    private final int y;
+
+    /** score from the heuristic, higher is better */
+    private final double score;
+
+    /**
+     * Creates a placement
+     * @param piece rotation state of the piece
+     * @param drops rows to fall before rotating
+     * @param rotations right rotations from the current state
+     * @param x landing column
+     * @param y landing row
+     * @param score heuristic score
+     */
+    public Placement(Piece piece, int drops, int rotations, int x, int y, double score) {
+        this.piece = piece;
+        this.drops = drops;
+        this.rotations = rotations;
+        this.x = x;
+        this.y = y;
+        this.score = score;
+    }
+
+    /**
+     * Copy of this placement with a new score
+     * @param s heuristic score
+     * @return Placement scored placement
+     */
+    public Placement withScore(double s) {
+        return new Placement(piece, drops, rotations, x, y, s);
+    }
+
+    /**
+     * Getter for rotation state
+     * @return Piece the landed piece
+     */
+    public Piece getPiece() {
+        return piece;
+    }
+
+    /**
+     * Getter for rows to fall before rotating
+     * @return int drops
+     */
+    public int getDrops() {
+        return drops;
+    }
+
+    /**
+     * Getter for number of right rotations
+     * @return int rotations
+     */
+    public int getRotations() {
+        return rotations;
+    }
+
+    /**
+     * Getter for landing column
+     * @return int x coordinate
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Getter for landing row
+     * @return int y coordinate
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Getter for heuristic score
+     * @return double score
+     */
+    public double getScore() {
+        return score;
+    }
+}
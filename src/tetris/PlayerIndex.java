@@ -0,0 +1,244 @@
+package tetris;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Best score of every player in a ScoreFile, kept in a memory mapped hash
+ * table next to it so looking a player up never reads every record. Each
+ * slot holds the record of a player's best score with the hash of its name
+ * and the score, so a lookup only reads names on a hash match. Names are
+ * compared as the bytes the score file stores.
+ * <p>
+ * The header marks the table clean only when it is closed with every
+ * record counted. A table that was open when the program died, or doesn't
+ * match its score file, is built again from the records once.
+ */
+public class PlayerIndex implements Closeable {
+
+    /** first four bytes of the file, "TSPL" */
+    private static final int magic = 0x5453504C;
+
+    /** size of the header: magic, slot count, records counted, players and clean flag */
+    private static final int headerBytes = 32;
+
+    /** size of one slot: record plus one, name hash and score */
+    private static final int slotBytes = 16;
+
+    /** slots of a new table, a power of two */
+    private static final int minSlots = 1 << 10;
+
+    /** most slots, so the table stays inside one mapping */
+    private static final int maxSlots = 1 << 26;
+
+    /** scores the table is about */
+    private final ScoreFile scores;
+
+    /** open file */
+    private final RandomAccessFile raf;
+
+    /** channel of the file, used to map the table */
+    private final FileChannel channel;
+
+    /** mapping of the header and slots */
+    private MappedByteBuffer map;
+
+    /** number of slots, a power of two */
+    private int slots;
+
+    /** number of players */
+    private int players;
+
+    /**
+     * Opens the player table of a score file, creating or rebuilding it if
+     * it doesn't match the records
+     * @param file file to open
+     * @param scores score file the table is about
+     * @throws IOException if the file can't be opened
+     */
+    public PlayerIndex(File file, ScoreFile scores) throws IOException {
+        this.scores = scores;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long counted = -1;
+        if (channel.size() >= headerBytes) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes);
+            slots = map.getInt(4);
+            if (map.getInt(0) == magic && map.getInt(28) == 1 && Integer.bitCount(slots) == 1
+                    && slots >= minSlots && slots <= maxSlots
+                    && channel.size() >= headerBytes + (long) slots * slotBytes) {
+                counted = map.getLong(8);
+                players = map.getInt(16);
+            }
+        }
+        if (counted < 0 || counted > scores.size()) {
+            slots = minSlots;
+            players = 0;
+            counted = 0;
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes + (long) slots * slotBytes);
+        if (counted == 0) {
+            clear();
+        }
+
+        // a crash from now on leaves the table marked for a rebuild
+        map.putInt(0, magic);
+        map.putInt(28, 0);
+        map.force();
+
+        for (long i = counted; i < scores.size(); ++i) {
+            add(i, scores.score(i), scores.nameHash(i));
+        }
+    }
+
+    /**
+     * Number of players
+     * @return int count
+     */
+    public int size() {
+        return players;
+    }
+
+    /**
+     * Counts a record just added to the score file
+     * @param record record index
+     * @param score score of the record
+     */
+    public void add(long record, int score) {
+        add(record, score, scores.nameHash(record));
+    }
+
+    /**
+     * Best score of a player
+     * @param name player name, null for none
+     * @return int score, -1 if the player has no scores
+     */
+    public int best(String name) {
+        byte[] bytes = ScoreFile.encode(name);
+        int hash = ScoreFile.hash(bytes);
+        for (int s = hash & (slots - 1); ; s = (s + 1) & (slots - 1)) {
+            int at = slot(s);
+            long record = map.getLong(at) - 1;
+            if (record < 0) {
+                return -1;
+            }
+            if (map.getInt(at + 8) == hash && scores.nameIs(record, bytes)) {
+                return map.getInt(at + 12);
+            }
+        }
+    }
+
+    /**
+     * Writes the table to disk and marks it clean, the score file must have
+     * been forced first
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        map.force();
+        map.putLong(8, scores.size());
+        map.putInt(16, players);
+        map.putInt(28, 1);
+        map.force();
+        raf.close();
+    }
+
+    /**
+     * Keeps a record if it is the best of its player so far
+     * @param record record index
+     * @param score score of the record
+     * @param hash name hash of the record
+     */
+    private void add(long record, int score, int hash) {
+        for (int s = hash & (slots - 1); ; s = (s + 1) & (slots - 1)) {
+            int at = slot(s);
+            long other = map.getLong(at) - 1;
+            if (other < 0) {
+                put(at, record, hash, score);
+                if (++players * 2 > slots) {
+                    grow();
+                }
+                return;
+            }
+            if (map.getInt(at + 8) == hash && scores.sameName(other, record)) {
+                if (score > map.getInt(at + 12)) {
+                    put(at, record, hash, score);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fills a slot
+     * @param at offset of the slot
+     * @param record record index
+     * @param hash name hash
+     * @param score score
+     */
+    private void put(int at, long record, int hash, int score) {
+        map.putLong(at, record + 1);
+        map.putInt(at + 8, hash);
+        map.putInt(at + 12, score);
+    }
+
+    /**
+     * Doubles the slots and puts every player back
+     */
+    private void grow() {
+        if (slots == maxSlots) {
+            throw new IllegalStateException("Too many players");
+        }
+        long[] records = new long[players];
+        int[] hashes = new int[players];
+        int[] best = new int[players];
+        int n = 0;
+        for (int s = 0; s < slots; ++s) {
+            int at = slot(s);
+            long record = map.getLong(at) - 1;
+            if (record >= 0) {
+                records[n] = record;
+                hashes[n] = map.getInt(at + 8);
+                best[n] = map.getInt(at + 12);
+                ++n;
+            }
+        }
+        slots *= 2;
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes + (long) slots * slotBytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't map player table", e);
+        }
+        clear();
+        for (int i = 0; i < n; ++i) {
+            int s = hashes[i] & (slots - 1);
+            while (map.getLong(slot(s)) != 0) {
+                s = (s + 1) & (slots - 1);
+            }
+            put(slot(s), records[i], hashes[i], best[i]);
+        }
+    }
+
+    /**
+     * Empties every slot
+     */
+    private void clear() {
+        map.putInt(4, slots);
+        for (int s = 0; s < slots; ++s) {
+            map.putLong(slot(s), 0);
+        }
+    }
+
+    /**
+     * Offset of a slot in the mapping
+     * @param s slot
+     * @return int byte offset
+     */
+    private static int slot(int s) {
+        return headerBytes + s * slotBytes;
+    }
+}
@@ -0,0 +1,390 @@
+package tetris;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Plays back a replay written by ReplayRecorder. The game is rebuilt from
+ * the seed in the header and the recorded inputs are fed to a fresh
+ * engine, so playback can run headless as fast as the CPU allows or one
+ * tick at a time from a GameLoop. Replays with keyframes can seek to any
+ * tick by restoring the nearest keyframe before it and playing forward.
+ */
+public class ReplayPlayer {
+
+    /** inputs by ordinal */
+    private static final Engine.Input[] inputs = Engine.Input.values();
+
+    /** replay bytes */
+    private final byte[] data;
+
+    /** read position in data */
+    private int pos;
+
+    /** time between timer ticks when the game was recorded */
+    private final int tickMillis;
+
+    /** game being played back */
+    private final Engine engine;
+
+    /** tick count of the next event */
+    private long nextTick;
+
+    /** next input, or -1 once the end of the stream was read */
+    private int nextInput;
+
+    /** tick counts of the keyframes, in order */
+    private long[] keyTicks = new long[0];
+
+    /** offsets of the keyframes */
+    private int[] keyOffsets = new int[0];
+
+    /** tick the recording ended at, -1 if the replay has no index */
+    private long endTick = -1;
+
+    /** kind of piece generator the game was recorded with */
+    private final String generator;
+
+    /** keyframes are decoded into this to check the game against them, null when not verifying */
+    private Engine verifier;
+
+    /** next keyframe to check the game against */
+    private int nextCheck = 0;
+
+    /**
+     * Reads a replay header and starts the game
+     * @param data replay bytes
+     * @throws IOException if the bytes are not a replay
+     */
+    public ReplayPlayer(byte[] data) throws IOException {
+        this.data = data;
+        if (readInt() != ReplayRecorder.magic) {
+            throw new IOException("Not a replay file");
+        }
+        int v = readByte();
+        if (v < 1 || v > ReplayRecorder.version) {
+            throw new IOException("Unsupported replay version " + v);
+        }
+        int width = (int) readVarint();
+        int height = (int) readVarint();
+        tickMillis = (int) readVarint();
+        if (v >= 2) {
+            readVarint();
+        }
+        byte[] name = new byte[(int) readVarint()];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = (byte) readByte();
+        }
+        long seed = readLong();
+        generator = new String(name, StandardCharsets.UTF_8);
+
+        try {
+            engine = new Engine(width, height, PieceGenerator.create(generator, seed));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad replay header", e);
+        }
+        engine.start();
+        if (v >= 2) {
+            readIndex();
+        }
+        readEvent();
+    }
+
+    /**
+     * Reads the keyframe index from the end of the replay
+     * @throws IOException if the index is broken
+     */
+    private void readIndex() throws IOException {
+        int start = pos;
+        if (data.length < start + 4) {
+            throw new IOException("Replay has no index");
+        }
+        pos = data.length - 4;
+        int index = readInt();
+        if (index < start || index >= data.length - 4) {
+            throw new IOException("Replay has no index");
+        }
+        pos = index;
+        int keys = (int) readVarint();
+        if (keys < 0 || keys > data.length) {
+            throw new IOException("Bad replay index");
+        }
+        keyTicks = new long[keys];
+        keyOffsets = new int[keys];
+        for (int i = 0; i < keys; ++i) {
+            keyTicks[i] = readVarint() + (i == 0 ? 0 : keyTicks[i - 1]);
+            keyOffsets[i] = (int) readVarint() + (i == 0 ? 0 : keyOffsets[i - 1]);
+        }
+        endTick = readVarint();
+        pos = start;
+    }
+
+    /**
+     * Reads a replay file
+     * @param file file to read
+     * @return ReplayPlayer player at the start of the game
+     * @throws IOException if the file can't be read or is not a replay
+     */
+    public static ReplayPlayer load(File file) throws IOException {
+        return new ReplayPlayer(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Getter for the game being played back
+     * @return Engine game
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Getter for time between timer ticks when the game was recorded
+     * @return int milliseconds
+     */
+    public int getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Getter for the tick the recording ended at
+     * @return long ticks, -1 if the replay doesn't say
+     */
+    public long getEndTick() {
+        return endTick;
+    }
+
+    /**
+     * Moves playback to a tick, before any inputs recorded at that tick.
+     * Playback restarts from the last keyframe at or before the tick, so
+     * only the ticks after it are played
+     * @param tick timer ticks since the game started
+     * @return false if the tick is before the current one and there is no
+     * keyframe to go back to
+     */
+    public boolean seek(long tick) {
+        int k = Arrays.binarySearch(keyTicks, tick);
+        if (k < 0) {
+            k = -k - 2;
+        }
+
+        // only restore when it saves playing from where we are
+        if (k >= 0 && (tick < engine.getTicks() || keyTicks[k] > engine.getTicks())) {
+            restore(k);
+        } else if (tick < engine.getTicks()) {
+            return false;
+        }
+        while (engine.getTicks() < tick && advance()) {
+            // keep playing
+        }
+        return true;
+    }
+
+    /**
+     * Restores the game from a keyframe and continues reading after it
+     * @param k keyframe number
+     */
+    private void restore(int k) {
+        pos = keyOffsets[k];
+        int length = (int) readVarint();
+        try {
+            engine.readState(new DataInputStream(new ByteArrayInputStream(data, pos, length)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Broken keyframe at tick " + keyTicks[k], e);
+        }
+        pos += length;
+        nextTick = keyTicks[k];
+        nextCheck = k + 1;
+        readEvent();
+    }
+
+    /**
+     * Checks if playback reached the end of the recording
+     * @return boolean
+     */
+    public boolean isFinished() {
+        return engine.isOver() || (nextInput < 0 && engine.getTicks() >= nextTick);
+    }
+
+    /**
+     * Makes playback check the game's incremental hash against a full one
+     * after every input, and against every keyframe it passes, throwing
+     * IllegalStateException on the first difference
+     * @param verify true to check
+     */
+    public void setVerify(boolean verify) {
+        engine.setVerifyHash(verify);
+        verifier = verify ? new Engine(engine.getWidth(), engine.getHeight(), PieceGenerator.create(generator, 0)) : null;
+    }
+
+    /**
+     * Checks the game against the keyframe recorded at the current tick,
+     * keyframes are taken right after their tick, before its inputs
+     */
+    private void checkKeyframe() {
+        long now = engine.getTicks();
+        while (nextCheck < keyTicks.length && keyTicks[nextCheck] < now) {
+            ++nextCheck;
+        }
+        if (nextCheck == keyTicks.length || keyTicks[nextCheck] != now) {
+            return;
+        }
+        int saved = pos;
+        pos = keyOffsets[nextCheck];
+        int length = (int) readVarint();
+        try {
+            verifier.readState(new DataInputStream(new ByteArrayInputStream(data, pos, length)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Broken keyframe at tick " + now, e);
+        }
+        pos = saved;
+        if (verifier.getHash() != engine.getHash() || verifier.getScore() != engine.getScore()) {
+            throw new IllegalStateException("Replay out of step with its keyframe at tick " + now);
+        }
+        ++nextCheck;
+    }
+
+    /**
+     * Applies the inputs recorded before the next timer tick, then the tick
+     * @return false if the recording has ended
+     */
+    public boolean advance() {
+        if (verifier != null) {
+            checkKeyframe();
+        }
+        while (nextInput >= 0 && nextTick == engine.getTicks()) {
+            engine.step(inputs[nextInput]);
+            readEvent();
+        }
+        if (isFinished()) {
+            return false;
+        }
+        engine.step(Engine.Input.tick);
+        return true;
+    }
+
+    /**
+     * Plays the rest of the recording without waiting between ticks
+     */
+    public void playToEnd() {
+        while (advance()) {
+            // keep playing
+        }
+    }
+
+    /**
+     * Reads the next event from the stream
+     */
+    private void readEvent() {
+        nextTick += readVarint();
+        int b = readByte();
+
+        // keyframes only matter when seeking
+        while (b == ReplayRecorder.keyframeMarker) {
+            int length = (int) readVarint();
+            pos += length;
+            nextTick += readVarint();
+            b = readByte();
+        }
+        nextInput = b == ReplayRecorder.endMarker || b >= inputs.length ? -1 : b;
+    }
+
+    /**
+     * Reads one byte
+     * @return int byte from 0 to 255
+     */
+    private int readByte() {
+        if (pos >= data.length) {
+            throw new IllegalStateException("Replay ends early");
+        }
+        return data[pos++] & 0xFF;
+    }
+
+    /**
+     * Reads a number stored with 7 bits per byte
+     * @return long number
+     */
+    private long readVarint() {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+    /**
+     * Reads four bytes, high byte first
+     * @return int number
+     */
+    private int readInt() throws IOException {
+        if (data.length < 4) {
+            throw new IOException("Not a replay file");
+        }
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | readByte();
+        }
+        return v;
+    }
+
+    /**
+     * Reads eight bytes, high byte first
+     * @return long number
+     */
+    private long readLong() {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | readByte();
+        }
+        return v;
+    }
+
+    /**
+     * Plays replay files headless and prints how fast they ran
+     * @param args [-verify] [-seek tick] replay files
+     */
+    public static void main(String[] args) {
+        int first = 0;
+        long seekTick = -1;
+        boolean verify = false;
+        if (args.length > first && args[first].equals("-verify")) {
+            verify = true;
+            ++first;
+        }
+        if (args.length >= first + 2 && args[first].equals("-seek")) {
+            seekTick = Long.parseLong(args[first + 1]);
+            first += 2;
+        }
+        if (args.length == first) {
+            System.err.println("usage: java tetris.ReplayPlayer [-verify] [-seek tick] file...");
+            System.exit(1);
+        }
+        for (String name : Arrays.copyOfRange(args, first, args.length)) {
+            try {
+                ReplayPlayer player = load(new File(name));
+                player.setVerify(verify);
+                long start = System.nanoTime();
+                if (seekTick >= 0) {
+                    player.seek(seekTick);
+                } else {
+                    player.playToEnd();
+                }
+                long nanos = System.nanoTime() - start;
+                Engine e = player.getEngine();
+                double gameMillis = (double) e.getTicks() * player.getTickMillis();
+                System.out.printf("%s: score=%d pieces=%d ticks=%d time=%.3fms speed=%.0fx real time hash=%016x%s%n",
+                        name, e.getScore() * 100, e.getPieces(), e.getTicks(), nanos / 1e6,
+                        gameMillis / Math.max(1, nanos / 1e6), e.getHash(), verify ? " verified" : "");
+            } catch (IOException | RuntimeException e) {
+                System.err.println(name + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package tetris;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Records a game as its seed and a compact stream of player inputs. Each
+ * input is stored as the number of timer ticks since the previous input,
+ * as a variable length number, followed by one byte for the input. Timer
+ * ticks themselves are not stored, they are implied by the tick counts.
+ * <p>
+ * Every few ticks a keyframe with the whole game state is written into the
+ * same stream, and an index of keyframes is appended when the recording
+ * ends, so a player can jump into a long game without replaying it all.
+ */
+public class ReplayRecorder {
+
+    /** first four bytes of a replay file, "TRPL" */
+    static final int magic = 0x5452504C;
+
+    /** format version written by this recorder */
+    static final int version = 2;
+
+    /** input byte that ends the event stream */
+    static final int endMarker = 0xFF;
+
+    /** input byte followed by a keyframe */
+    static final int keyframeMarker = 0xFE;
+
+    /** ticks between keyframes, 0 for none */
+    private final int keyframeTicks;
+
+    /** tick counts of the keyframes written so far */
+    private long[] keyTicks = new long[16];
+
+    /** offsets of the keyframes written so far */
+    private int[] keyOffsets = new int[16];
+
+    /** number of keyframes written so far */
+    private int keys = 0;
+
+    /** scratch buffer for one keyframe */
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    private final DataOutputStream frameOut = new DataOutputStream(frame);
+
+    /** recorded bytes */
+    private byte[] buf = new byte[256];
+
+    /** number of bytes used in buf */
+    private int size = 0;
+
+    /** tick count of the last recorded input */
+    private long lastTick = 0;
+
+    /**
+     * Starts a recording by writing the replay header and a keyframe of the
+     * game as it is now
+     * @param engine game to record, already started
+     * @param tickMillis time between timer ticks
+     * @param generator kind of piece generator, see PieceGenerator.create
+     * @param seed seed of the piece generator
+     * @param keyframeTicks ticks between keyframes, 0 for none
+     */
+    public ReplayRecorder(Engine engine, int tickMillis, String generator, long seed, int keyframeTicks) {
+        this.keyframeTicks = keyframeTicks;
+        writeInt(magic);
+        writeByte(version);
+        writeVarint(engine.getWidth());
+        writeVarint(engine.getHeight());
+        writeVarint(tickMillis);
+        writeVarint(keyframeTicks);
+        byte[] name = generator.getBytes(StandardCharsets.UTF_8);
+        writeVarint(name.length);
+        for (byte b : name) {
+            writeByte(b);
+        }
+        writeLong(seed);
+        lastTick = engine.getTicks();
+        if (keyframeTicks > 0) {
+            keyframe(engine);
+        }
+    }
+
+    /**
+     * Records one player input
+     * @param tick timer ticks since the game started
+     * @param input player move
+     */
+    public void record(long tick, Engine.Input input) {
+        writeVarint(tick - lastTick);
+        writeByte(input.ordinal());
+        lastTick = tick;
+    }
+
+    /**
+     * Called by the engine after every timer tick, writes a keyframe when
+     * one is due
+     * @param engine game being recorded
+     */
+    public void tick(Engine engine) {
+        if (keyframeTicks > 0 && engine.getTicks() % keyframeTicks == 0) {
+            keyframe(engine);
+        }
+    }
+
+    /**
+     * Writes the whole game state into the event stream
+     * @param engine game being recorded
+     */
+    private void keyframe(Engine engine) {
+        frame.reset();
+        try {
+            engine.writeState(frameOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        long tick = engine.getTicks();
+        writeVarint(tick - lastTick);
+        writeByte(keyframeMarker);
+        lastTick = tick;
+
+        if (keys == keyTicks.length) {
+            keyTicks = Arrays.copyOf(keyTicks, keys * 2);
+            keyOffsets = Arrays.copyOf(keyOffsets, keys * 2);
+        }
+        keyTicks[keys] = tick;
+        keyOffsets[keys] = size;
+        ++keys;
+
+        writeVarint(frame.size());
+        byte[] state = frame.toByteArray();
+        for (byte b : state) {
+            writeByte(b);
+        }
+    }
+
+    /**
+     * Ends the event stream and appends the keyframe index. The index holds
+     * the number of keyframes, the tick and offset of each as deltas from
+     * the one before, and the end tick. The last four bytes of the replay
+     * are the offset of the index
+     * @param endTick timer ticks when the game ended
+     * @return byte[] the whole replay
+     */
+    public byte[] finish(long endTick) {
+        writeVarint(endTick - lastTick);
+        writeByte(endMarker);
+        lastTick = endTick;
+
+        int index = size;
+        writeVarint(keys);
+        for (int i = 0; i < keys; ++i) {
+            writeVarint(keyTicks[i] - (i == 0 ? 0 : keyTicks[i - 1]));
+            writeVarint(keyOffsets[i] - (i == 0 ? 0 : keyOffsets[i - 1]));
+        }
+        writeVarint(endTick);
+        writeInt(index);
+        return Arrays.copyOf(buf, size);
+    }
+
+    /**
+     * Ends the event stream and writes the replay to a file
+     * @param endTick timer ticks when the game ended
+     * @param file file to write
+     * @throws IOException if the file can't be written
+     */
+    public void save(long endTick, File file) throws IOException {
+        byte[] data = finish(endTick);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Number of bytes recorded so far
+     * @return int size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends one byte
+     * @param b byte to write
+     */
+    private void writeByte(int b) {
+        if (size == buf.length) {
+            buf = Arrays.copyOf(buf, size * 2);
+        }
+        buf[size++] = (byte) b;
+    }
+
+    /**
+     * Appends a number using 7 bits per byte, small numbers take one byte
+     * @param v number, must not be negative
+     */
+    private void writeVarint(long v) {
+        while ((v & ~0x7FL) != 0) {
+            writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        writeByte((int) v);
+    }
+
+    /**
+     * Appends four bytes, high byte first
+     * @param v number
+     */
+    private void writeInt(int v) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            writeByte(v >>> shift);
+        }
+    }
+
+    /**
+     * Appends eight bytes, high byte first
+     * @param v number
+     */
+    private void writeLong(long v) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            writeByte((int) (v >>> shift));
+        }
+    }
+}
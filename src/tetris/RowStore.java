@@ -0,0 +1,249 @@
+package tetris;
+
+import java.util.Arrays;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Piece colors of the cells of a board, kept in chunks of rows. A chunk
+ * is only allocated once a cell in it is filled and is dropped again once
+ * none of its rows has a filled cell left, so a tall board costs memory
+ * for the rows its stack reaches and not for the empty space above it.
+ * Each chunk keeps the number of its rows that may hold filled cells, so
+ * clearing the top of a stack also frees a chunk whose upper rows were
+ * never filled. Emptying single cells doesn't lower it, rows are given
+ * back by clearRows.
+ */
+public class RowStore {
+
+    /** rows in each chunk, a power of two */
+    private static final int chunkRows = 64;
+
+    /** log2 of chunkRows */
+    private static final int chunkShift = 6;
+
+    /** shapes by ordinal, to turn stored bytes back into shapes */
+    private static final Tetris[] shapes = Tetris.values();
+
+    /** number of columns */
+    private final int width;
+
+    /** shape ordinal of every cell of each chunk, null for a chunk with no filled cell */
+    private final byte[][] chunks;
+
+    /** rows from the bottom of each chunk above which every cell is empty */
+    private final int[] used;
+
+    /** chunks allocated */
+    private int allocated = 0;
+
+    /**
+     * Creates an empty store
+     * @param width number of columns
+     * @param height number of rows
+     */
+    public RowStore(int width, int height) {
+        this.width = width;
+        chunks = new byte[(height + chunkRows - 1) >> chunkShift][];
+        used = new int[chunks.length];
+    }
+
+    /**
+     * Color of a cell
+     * @param x column
+     * @param y row
+     * @return Tetris shape the cell was filled by, emptyPiece if it is empty
+     */
+    public Tetris get(int x, int y) {
+        byte[] c = chunks[y >> chunkShift];
+        return c == null ? Tetris.emptyPiece : shapes[c[(y & (chunkRows - 1)) * width + x]];
+    }
+
+    /**
+     * Sets the color of a cell
+     * @param x column
+     * @param y row
+     * @param shape shape filling the cell, emptyPiece to empty it
+     */
+    public void set(int x, int y, Tetris shape) {
+        byte[] c = chunk(y, shape != Tetris.emptyPiece);
+        if (c != null) {
+            c[(y & (chunkRows - 1)) * width + x] = (byte) shape.ordinal();
+            if (shape != Tetris.emptyPiece) {
+                fill(y >> chunkShift, (y & (chunkRows - 1)) + 1);
+            }
+        }
+    }
+
+    /**
+     * Sets every cell of a row to one color
+     * @param y row
+     * @param shape shape filling the row
+     */
+    public void fillRow(int y, Tetris shape) {
+        byte[] c = chunk(y, shape != Tetris.emptyPiece);
+        if (c != null) {
+            int start = (y & (chunkRows - 1)) * width;
+            Arrays.fill(c, start, start + width, (byte) shape.ordinal());
+            if (shape != Tetris.emptyPiece) {
+                fill(y >> chunkShift, (y & (chunkRows - 1)) + 1);
+            }
+        }
+    }
+
+    /**
+     * Empties a range of rows, releasing chunks left with no rows in use
+     * @param from first row
+     * @param to row after the last
+     */
+    public void clearRows(int from, int to) {
+        while (from < to) {
+            int k = from >> chunkShift;
+            int end = Math.min(to, (k + 1) << chunkShift);
+            empty(k, from & (chunkRows - 1), end - (k << chunkShift));
+            from = end;
+        }
+    }
+
+    /**
+     * Copies a block of rows within the store, the blocks may overlap
+     * @param src first row to copy
+     * @param dst row it goes to
+     * @param count number of rows
+     */
+    public void moveRows(int src, int dst, int count) {
+        if (dst < src) {
+            for (int i = 0; i < count; ) {
+                i += copyRun(this, src + i, dst + i, count - i, true);
+            }
+        } else if (dst > src) {
+            for (int i = count; i > 0; ) {
+                i -= copyRun(this, src + i, dst + i, i, false);
+            }
+        }
+    }
+
+    /**
+     * Copies the bottom rows into another store of the same size, rows of
+     * the other store above them are left as they are
+     * @param to store to copy into
+     * @param count number of rows from the bottom
+     */
+    public void copyTo(RowStore to, int count) {
+        for (int i = 0; i < count; ) {
+            i += copyRun(to, i, i, count - i, true);
+        }
+    }
+
+    /**
+     * Copies the longest run of rows that stays inside one chunk on both
+     * sides
+     * @param to store to copy into
+     * @param src first row to copy going up, or row after the last going down
+     * @param dst row it goes to, matching src
+     * @param most rows left to copy
+     * @param up true to copy rows from src up, false for rows below src
+     * @return int rows copied
+     */
+    private int copyRun(RowStore to, int src, int dst, int most, boolean up) {
+        int n;
+        if (up) {
+            n = Math.min(most, Math.min(chunkRows - (src & (chunkRows - 1)), chunkRows - (dst & (chunkRows - 1))));
+        } else {
+            n = Math.min(most, Math.min(((src - 1) & (chunkRows - 1)) + 1, ((dst - 1) & (chunkRows - 1)) + 1));
+            src -= n;
+            dst -= n;
+        }
+        int k = src >> chunkShift;
+        byte[] from = chunks[k];
+        int filled = from == null ? 0 : Math.max(0, Math.min(n, used[k] - (src & (chunkRows - 1))));
+        while (filled > 0 && rowEmpty(from, (src & (chunkRows - 1)) + filled - 1)) {
+            --filled;
+        }
+        int d = dst >> chunkShift;
+        int start = dst & (chunkRows - 1);
+        if (filled > 0) {
+            System.arraycopy(from, (src & (chunkRows - 1)) * width, to.chunk(dst, true), start * width, filled * width);
+            to.fill(d, start + filled);
+        }
+        to.empty(d, start + filled, start + n);
+        return n;
+    }
+
+    /**
+     * Raises the rows of a chunk that may hold filled cells
+     * @param k chunk
+     * @param top rows from the bottom of the chunk that may now be filled
+     */
+    private void fill(int k, int top) {
+        if (used[k] < top) {
+            used[k] = top;
+        }
+    }
+
+    /**
+     * Empties rows of a chunk, releasing it once none of its rows can hold
+     * a filled cell
+     * @param k chunk
+     * @param from first row from the bottom of the chunk
+     * @param to row after the last
+     */
+    private void empty(int k, int from, int to) {
+        byte[] c = chunks[k];
+        if (c == null || from >= used[k]) {
+            return;
+        }
+        if (to < used[k]) {
+            Arrays.fill(c, from * width, to * width, (byte) 0);
+            return;
+        }
+        Arrays.fill(c, from * width, used[k] * width, (byte) 0);
+        while (from > 0 && rowEmpty(c, from - 1)) {
+            --from;
+        }
+        used[k] = from;
+        if (from == 0) {
+            chunks[k] = null;
+            --allocated;
+        }
+    }
+
+    /**
+     * Checks if a row of a chunk has no filled cell
+     * @param c chunk
+     * @param row row from the bottom of the chunk
+     * @return boolean true if every cell of the row is empty
+     */
+    private boolean rowEmpty(byte[] c, int row) {
+        for (int i = row * width, end = i + width; i < end; ++i) {
+            if (c[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chunk holding a row
+     * @param y row
+     * @param create true to allocate the chunk if it doesn't exist
+     * @return byte[] chunk, null if it doesn't exist and wasn't created
+     */
+    private byte[] chunk(int y, boolean create) {
+        byte[] c = chunks[y >> chunkShift];
+        if (c == null && create) {
+            c = new byte[chunkRows * width];
+            chunks[y >> chunkShift] = c;
+            ++allocated;
+        }
+        return c;
+    }
+
+    /**
+     * Getter for memory held by cell colors
+     * @return long bytes in allocated chunks
+     */
+    public long getAllocatedBytes() {
+        return (long) allocated * chunkRows * width;
+    }
+}
@@ -0,0 +1,200 @@
+package tetris;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Every score ever played with rank queries. Scores are kept in a memory
+ * mapped ScoreFile and ranked by a ScoreIndex built when the file is
+ * opened. The best score of each player is kept in a PlayerIndex file next
+ * to it. Not thread safe, Storage only uses it from its own thread.
+ */
+public class ScoreDatabase implements Closeable {
+
+    /** scores on disk */
+    private final ScoreFile file;
+
+    /** scores in rank order */
+    private final ScoreIndex index = new ScoreIndex();
+
+    /** best score of each player */
+    private final PlayerIndex players;
+
+    /**
+     * Opens a score database and indexes every score in it
+     * @param path file to open, created if it doesn't exist, the player
+     * table is the same file name ending in .players
+     * @throws IOException if the file can't be opened
+     */
+    public ScoreDatabase(File path) throws IOException {
+        file = new ScoreFile(path);
+        int n = (int) file.size();
+        long[] keys = new long[n];
+        for (int i = 0; i < n; ++i) {
+            keys[i] = ScoreIndex.key(file.score(i), i);
+        }
+        index.build(keys, n);
+        try {
+            players = new PlayerIndex(new File(path.getPath() + ".players"), file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of scores
+     * @return int count
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Adds a score
+     * @param name player name
+     * @param score score, negative scores count as 0
+     */
+    public void add(String name, int score) {
+        score = Math.max(0, score);
+        long record = file.append(name, score, System.currentTimeMillis());
+        index.add(score, record);
+        players.add(record, score);
+    }
+
+    /**
+     * Best scores, best first
+     * @param k most rows to return
+     * @return String[][] name and score rows
+     */
+    public String[][] top(int k) {
+        long[] keys = index.top(k);
+        String[][] rows = new String[keys.length][];
+        for (int i = 0; i < keys.length; ++i) {
+            long record = ScoreIndex.record(keys[i]);
+            rows[i] = new String[]{file.name(record), Integer.toString(file.score(record))};
+        }
+        return rows;
+    }
+
+    /**
+     * Rank a score has or would have
+     * @param score score
+     * @return int rank, 1 is the best
+     */
+    public int rank(int score) {
+        return index.countAbove(score) + 1;
+    }
+
+    /**
+     * Rank of a player's best score
+     * @param name player name
+     * @return int rank, 1 is the best, 0 if the player has no scores
+     */
+    public int rankOf(String name) {
+        int score = bestOf(name);
+        return score < 0 ? 0 : rank(score);
+    }
+
+    /**
+     * Best score of a player
+     * @param name player name
+     * @return int score, -1 if the player has no scores
+     */
+    public int bestOf(String name) {
+        return players.best(name);
+    }
+
+    /**
+     * Percent of scores at or below a score
+     * @param score score
+     * @return double percent from 0 to 100
+     */
+    public double percentile(int score) {
+        int n = size();
+        return n == 0 ? 100 : 100.0 * index.countAtOrBelow(score) / n;
+    }
+
+    /**
+     * Score at a percentile, as used for the 50th percentile being the median
+     * @param p percentile from 0 to 100
+     * @return int score, 0 if there are no scores
+     */
+    public int scoreAtPercentile(double p) {
+        int n = size();
+        if (n == 0) {
+            return 0;
+        }
+
+        // ranks go from best to worst, percentiles from worst to best
+        int below = (int) Math.ceil(p / 100.0 * n) - 1;
+        int rank = n - 1 - Math.max(0, Math.min(n - 1, below));
+        return ScoreIndex.score(index.keyAt(rank));
+    }
+
+    /**
+     * Writes changed pages of the file to disk
+     */
+    public void force() {
+        file.force();
+    }
+
+    /**
+     * Closes the files
+     * @throws IOException if a file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        file.force();
+        try {
+            players.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Fills a database with random scores and times the queries
+     * @param args file and number of scores to add
+     * @throws IOException if the file can't be used
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java tetris.ScoreDatabase file count");
+            System.exit(1);
+        }
+        int count = Integer.parseInt(args[1]);
+
+        long start = System.nanoTime();
+        ScoreDatabase db = new ScoreDatabase(new File(args[0]));
+        System.out.printf("opened %d scores of %d players in %.1fms%n", db.size(), db.players.size(),
+                (System.nanoTime() - start) / 1e6);
+
+        SplitMix random = new SplitMix(1);
+        start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            db.add("player" + random.nextInt(100000), random.nextInt(1000) * 100);
+        }
+        db.force();
+        System.out.printf("added %d scores in %.1fms%n", count, (System.nanoTime() - start) / 1e6);
+
+        int queries = 100000;
+        long sink = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < queries; ++i) {
+            sink += db.rank(random.nextInt(1000) * 100);
+            sink += db.rankOf("player" + random.nextInt(100000));
+            sink += db.scoreAtPercentile(random.nextInt(101));
+        }
+        System.out.printf("%d rank, player rank and percentile queries in %.1fms (%d)%n",
+                queries, (System.nanoTime() - start) / 1e6, sink);
+
+        start = System.nanoTime();
+        String[][] top = db.top(10);
+        System.out.printf("top 10 in %.3fms, best %s %s, median %d, size %d%n", (System.nanoTime() - start) / 1e6,
+                top.length > 0 ? top[0][0] : "-", top.length > 0 ? top[0][1] : "-",
+                db.scoreAtPercentile(50), db.size());
+        db.close();
+    }
+}
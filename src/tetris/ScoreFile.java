@@ -0,0 +1,294 @@
+package tetris;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every score ever played, stored as fixed size records in a memory mapped
+ * file. Record i is at a known offset, so reading one is a few loads from
+ * the mapping, and appending one doesn't rewrite anything. The file is
+ * mapped in small fixed segments, so it grows a segment at a time and can
+ * grow past what one mapping can hold.
+ * <p>
+ * The header holds the record count. It is only written by force, after
+ * the records it covers have been forced to disk, so a crash or a page
+ * that never reached the disk can lose the records added since the last
+ * force but never leaves a half written one counted.
+ */
+public class ScoreFile implements Closeable {
+
+    /** first four bytes of the file, "TSDB" */
+    private static final int magic = 0x54534442;
+
+    /** size of the header: magic, record size and record count */
+    private static final int headerBytes = 16;
+
+    /** size of one record: name, score and time */
+    static final int recordBytes = 32;
+
+    /** bytes for the name, UTF-8 padded with zeros */
+    static final int nameBytes = 20;
+
+    /** records in one mapped segment, the file grows by this many at a time */
+    private static final int segmentRecords = 1 << 12;
+
+    /** open file */
+    private final RandomAccessFile raf;
+
+    /** channel of the file, used to map segments */
+    private final FileChannel channel;
+
+    /** mapping of the header */
+    private final MappedByteBuffer header;
+
+    /** mappings of the record segments, in order */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    /** number of records */
+    private long count;
+
+    /** number of records counted in the header on disk */
+    private long durable;
+
+    /**
+     * Opens a score file, creating it if it doesn't exist
+     * @param file file to open
+     * @throws IOException if the file can't be opened or isn't a score file
+     */
+    public ScoreFile(File file) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        boolean fresh = channel.size() == 0;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes);
+        if (fresh) {
+            header.putInt(0, magic);
+            header.putInt(4, recordBytes);
+            header.putLong(8, 0);
+            header.force();
+        } else if (header.getInt(0) != magic || header.getInt(4) != recordBytes) {
+            close();
+            throw new IOException("Not a score file: " + file);
+        }
+        count = header.getLong(8);
+        if (count < 0 || headerBytes + count * recordBytes > channel.size()) {
+            close();
+            throw new IOException("Broken score file: " + file);
+        }
+        durable = count;
+    }
+
+    /**
+     * Number of records
+     * @return long count
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Adds a record at the end, it is kept if the file is closed or
+     * forced
+     * @param name player name, cut to nameBytes of UTF-8
+     * @param score score
+     * @param time when the score was played, milliseconds since 1970
+     * @return long index of the new record
+     */
+    public long append(String name, int score, long time) {
+        long i = count;
+        MappedByteBuffer seg = segment(i);
+        int at = (int) (i % segmentRecords) * recordBytes;
+
+        byte[] bytes = encode(name);
+        for (int b = 0; b < nameBytes; ++b) {
+            seg.put(at + b, b < bytes.length ? bytes[b] : 0);
+        }
+        seg.putInt(at + nameBytes, score);
+        seg.putLong(at + nameBytes + 4, time);
+
+        count = i + 1;
+        return i;
+    }
+
+    /**
+     * Score of a record
+     * @param i record index
+     * @return int score
+     */
+    public int score(long i) {
+        return segment(i).getInt((int) (i % segmentRecords) * recordBytes + nameBytes);
+    }
+
+    /**
+     * Time of a record
+     * @param i record index
+     * @return long milliseconds since 1970
+     */
+    public long time(long i) {
+        return segment(i).getLong((int) (i % segmentRecords) * recordBytes + nameBytes + 4);
+    }
+
+    /**
+     * Player name of a record
+     * @param i record index
+     * @return String name
+     */
+    public String name(long i) {
+        MappedByteBuffer seg = segment(i);
+        int at = (int) (i % segmentRecords) * recordBytes;
+        byte[] bytes = new byte[nameBytes];
+        int n = 0;
+        while (n < nameBytes && (bytes[n] = seg.get(at + n)) != 0) {
+            ++n;
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash of the player name of a record, matching hash of its encoded name
+     * @param i record index
+     * @return int hash
+     */
+    public int nameHash(long i) {
+        MappedByteBuffer seg = segment(i);
+        int at = (int) (i % segmentRecords) * recordBytes;
+        int h = 0x811C9DC5;
+        for (int n = 0; n < nameBytes; ++n) {
+            byte b = seg.get(at + n);
+            if (b == 0) {
+                break;
+            }
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Checks the player name of a record without decoding it
+     * @param i record index
+     * @param name name as encoded by encode
+     * @return boolean true if the record has that name
+     */
+    public boolean nameIs(long i, byte[] name) {
+        MappedByteBuffer seg = segment(i);
+        int at = (int) (i % segmentRecords) * recordBytes;
+        for (int n = 0; n < nameBytes; ++n) {
+            byte b = seg.get(at + n);
+            if (b != (n < name.length ? name[n] : 0)) {
+                return false;
+            }
+            if (b == 0) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if two records have the same player name
+     * @param i record index
+     * @param j other record index
+     * @return boolean true if the names are the same
+     */
+    public boolean sameName(long i, long j) {
+        MappedByteBuffer a = segment(i);
+        MappedByteBuffer b = segment(j);
+        int at = (int) (i % segmentRecords) * recordBytes;
+        int bt = (int) (j % segmentRecords) * recordBytes;
+        for (int n = 0; n < nameBytes; ++n) {
+            byte c = a.get(at + n);
+            if (c != b.get(bt + n)) {
+                return false;
+            }
+            if (c == 0) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes records added since the last force to disk, then counts them
+     * in the header
+     */
+    public void force() {
+        if (durable == count) {
+            return;
+        }
+
+        // records must be on disk before the count that covers them
+        for (long s = durable / segmentRecords; s <= (count - 1) / segmentRecords; ++s) {
+            segment(s * segmentRecords).force();
+        }
+        header.putLong(8, count);
+        header.force();
+        durable = count;
+    }
+
+    /**
+     * Closes the file, mappings stay valid until they are collected
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Gets the mapping holding a record, mapping new segments as needed
+     * @param i record index
+     * @return MappedByteBuffer segment
+     */
+    private MappedByteBuffer segment(long i) {
+        int s = (int) (i / segmentRecords);
+        while (segments.size() <= s) {
+            long start = headerBytes + (long) segments.size() * segmentRecords * recordBytes;
+            try {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start, (long) segmentRecords * recordBytes));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't map score file", e);
+            }
+        }
+        return segments.get(s);
+    }
+
+    /**
+     * Hash of an encoded name, matching nameHash of a record with that name
+     * @param name name as encoded by encode
+     * @return int hash
+     */
+    static int hash(byte[] name) {
+        int h = 0x811C9DC5;
+        for (byte b : name) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Encodes a name as UTF-8, cut at a character boundary to fit a record
+     * @param name player name, null for none
+     * @return byte[] at most nameBytes bytes
+     */
+    static byte[] encode(String name) {
+        byte[] bytes = (name == null ? "" : name).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= nameBytes) {
+            return bytes;
+        }
+        int n = nameBytes;
+
+        // don't cut a multi byte character in half
+        while (n > 0 && (bytes[n] & 0xC0) == 0x80) {
+            --n;
+        }
+        byte[] cut = new byte[n];
+        System.arraycopy(bytes, 0, cut, 0, n);
+        return cut;
+    }
+}
@@ -0,0 +1,215 @@
+package tetris;
+
+import java.util.Arrays;
+
+/**
+ * Order statistics over every score in a ScoreFile. Each entry is one long
+ * key that sorts best score first, ties by the earlier record, so the
+ * index is a sorted long array of 8 bytes per score. New scores go into a
+ * small sorted array that is merged into the big one once it holds about
+ * the square root of the total, so adding stays cheap while rank, top and
+ * percentile queries are binary searches over both arrays.
+ */
+public class ScoreIndex {
+
+    /** smallest size the recent array is allowed to grow to before merging */
+    private static final int minRecent = 1024;
+
+    /** keys of most scores, ascending */
+    private long[] sorted = new long[0];
+
+    /** used part of sorted */
+    private int sortedSize = 0;
+
+    /** keys added since the last merge, ascending */
+    private long[] recent = new long[minRecent];
+
+    /** used part of recent */
+    private int recentSize = 0;
+
+    /**
+     * Builds the key of a score
+     * @param score score, not negative
+     * @param record record index in the score file
+     * @return long key, smaller is better
+     */
+    static long key(int score, long record) {
+        return ((long) (Integer.MAX_VALUE - score) << 32) | record;
+    }
+
+    /**
+     * Score of a key
+     * @param key key from key
+     * @return int score
+     */
+    static int score(long key) {
+        return Integer.MAX_VALUE - (int) (key >>> 32);
+    }
+
+    /**
+     * Record index of a key
+     * @param key key from key
+     * @return long record index
+     */
+    static long record(long key) {
+        return key & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Replaces the index with a set of keys
+     * @param keys keys in any order, the array is kept and sorted in place
+     * @param n number of keys used
+     */
+    public void build(long[] keys, int n) {
+        Arrays.parallelSort(keys, 0, n);
+        sorted = keys;
+        sortedSize = n;
+        recentSize = 0;
+    }
+
+    /**
+     * Number of scores
+     * @return int count
+     */
+    public int size() {
+        return sortedSize + recentSize;
+    }
+
+    /**
+     * Adds a score
+     * @param score score, not negative
+     * @param record record index in the score file
+     */
+    public void add(int score, long record) {
+        long key = key(score, record);
+        if (recentSize == recent.length) {
+            merge();
+        }
+        int at = -Arrays.binarySearch(recent, 0, recentSize, key) - 1;
+        System.arraycopy(recent, at, recent, at + 1, recentSize - at);
+        recent[at] = key;
+        ++recentSize;
+    }
+
+    /**
+     * Number of scores better than a score
+     * @param score score
+     * @return int count, the score would be ranked one more than this
+     */
+    public int countAbove(int score) {
+        long key = key(score, 0);
+        return lowerBound(sorted, sortedSize, key) + lowerBound(recent, recentSize, key);
+    }
+
+    /**
+     * Number of scores at or below a score
+     * @param score score
+     * @return int count
+     */
+    public int countAtOrBelow(int score) {
+        return size() - countAbove(score);
+    }
+
+    /**
+     * Finds the key at a rank
+     * @param rank 0 is the best score, must be less than size
+     * @return long key
+     */
+    public long keyAt(int rank) {
+        long[] a = sorted;
+        long[] b = recent;
+        int n = sortedSize;
+        int m = recentSize;
+
+        // take j keys from recent and rank - j from sorted so the two
+        // prefixes together are exactly the best rank keys
+        int lo = Math.max(0, rank - n);
+        int hi = Math.min(rank, m);
+        while (lo <= hi) {
+            int j = (lo + hi) >>> 1;
+            int i = rank - j;
+            if (j > 0 && i < n && b[j - 1] > a[i]) {
+                hi = j - 1;
+            } else if (i > 0 && j < m && a[i - 1] > b[j]) {
+                lo = j + 1;
+            } else {
+                if (i >= n) {
+                    return b[j];
+                }
+                if (j >= m) {
+                    return a[i];
+                }
+                return Math.min(a[i], b[j]);
+            }
+        }
+        throw new IllegalStateException("Index out of order");
+    }
+
+    /**
+     * Keys of the best scores, best first
+     * @param k most keys to return
+     * @return long[] keys
+     */
+    public long[] top(int k) {
+        long[] out = new long[Math.min(k, size())];
+        int i = 0;
+        int j = 0;
+        for (int r = 0; r < out.length; ++r) {
+            if (j >= recentSize || (i < sortedSize && sorted[i] < recent[j])) {
+                out[r] = sorted[i++];
+            } else {
+                out[r] = recent[j++];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Merges the recent keys into the sorted keys, from the back so no
+     * extra array is needed when sorted has room
+     */
+    private void merge() {
+        int total = sortedSize + recentSize;
+        if (total > sorted.length) {
+            sorted = Arrays.copyOf(sorted, Math.max(total, sorted.length + (sorted.length >> 1)));
+        }
+        int i = sortedSize - 1;
+        int j = recentSize - 1;
+        for (int d = total - 1; j >= 0; --d) {
+            if (i >= 0 && sorted[i] > recent[j]) {
+                sorted[d] = sorted[i--];
+            } else {
+                sorted[d] = recent[j--];
+            }
+        }
+        sortedSize = total;
+        recentSize = 0;
+
+        // let the recent array grow with the square root of the total
+        int want = Math.max(minRecent, (int) Math.sqrt(total));
+        if (want > recent.length) {
+            recent = new long[want];
+        }
+    }
+
+    /**
+     * Number of keys in a sorted array smaller than a key
+     * @param a sorted keys
+     * @param n used part of a
+     * @param key key to look for
+     * @return int count
+     */
+    private static int lowerBound(long[] a, int n, long key) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,165 @@
+package tetris;
+
+import tetris.Piece.Tetris;
+
+/**
+ * One headless game hosted by the server. The engine is ticked by a
+ * TickScheduler worker and moved by the network thread, so both hold the
+ * engine lock. A session with a bot plays itself and starts over when it
+ * loses, to keep the server under load.
+ */
+public class Session {
+
+    /** number the session is known by */
+    private final int id;
+
+    /** game rules and board state */
+    private final Engine engine;
+
+    /** plays the game, null when a player does */
+    private final Bot bot;
+
+    /** time between gravity ticks */
+    private final long tickNanos;
+
+    /** when the next tick is due, only used by the worker running it */
+    long nextTick;
+
+    /** sends changes to spectators, null if nobody may watch */
+    private SpectatorBroadcaster.Feed feed;
+
+    /** used to know if the session was closed and should stop ticking */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a session and starts its game
+     * @param id number the session is known by
+     * @param seed seed of the piece generator
+     * @param tickMillis time between gravity ticks
+     * @param bot plays the game, null when a player does
+     */
+    public Session(int id, long seed, int tickMillis, Bot bot) {
+        this.id = id;
+        this.bot = bot;
+        tickNanos = tickMillis * 1000000L;
+        engine = new Engine(new UniformGenerator(seed));
+        engine.start();
+    }
+
+    /**
+     * Getter for session number
+     * @return int id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Getter for game engine, hold its lock while using it
+     * @return Engine engine
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Getter for time between gravity ticks
+     * @return long nanoseconds
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Lets spectators watch this session
+     * @param feed sends changes to spectators
+     */
+    public void setFeed(SpectatorBroadcaster.Feed feed) {
+        synchronized (engine) {
+            this.feed = feed;
+            feed.publish();
+        }
+    }
+
+    /**
+     * Sends what changed to spectators, caller must hold the engine lock
+     */
+    private void publish() {
+        if (feed != null) {
+            feed.publish();
+        }
+    }
+
+    /**
+     * Runs one gravity tick, or lets the bot place the falling piece
+     */
+    public void tick() {
+        synchronized (engine) {
+            if (bot == null || engine.getCurPiece().getPiece() == Tetris.emptyPiece) {
+                engine.step(Engine.Input.tick);
+            } else {
+                bot.play(engine);
+            }
+
+            // bots start over so the load stays the same
+            if (bot != null && engine.isOver()) {
+                engine.start();
+            }
+            publish();
+        }
+    }
+
+    /**
+     * Passes a player move to the engine
+     * @param input player move
+     * @return true if the board or falling piece changed
+     */
+    public boolean input(Engine.Input input) {
+        synchronized (engine) {
+            if (!engine.step(input)) {
+                return false;
+            }
+            publish();
+            return true;
+        }
+    }
+
+    /**
+     * Starts a new game in this session
+     */
+    public void restart() {
+        synchronized (engine) {
+            engine.start();
+            publish();
+        }
+    }
+
+    /**
+     * Stops ticking this session
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Checks if the session was closed
+     * @return boolean
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Describes the game as sent to the player
+     * @return String ticks, score, pieces, whether it is over, and the
+     * falling piece's x, y, shape and rotation
+     */
+    public String describe() {
+        synchronized (engine) {
+            Piece p = engine.getCurPiece();
+            return engine.getTicks() + " " + engine.getScore() + " " + engine.getPieces() + " "
+                    + (engine.isOver() ? "over" : "playing") + " " + engine.getCurX() + " " + engine.getCurY()
+                    + " " + p.getPiece() + " " + p.getRotation();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package tetris;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Command line runner that plays many seeded headless games with the bot
+ * across all cores and reports throughput, lines per game, the score
+ * distribution and how throughput scales with the number of threads.
+ */
+public class Simulator {
+
+    /** number of games to play */
+    private int games = 200;
+
+    /** seed of the first game, game i uses seed + i */
+    private long seed = 1;
+
+    /** games are stopped after this many pieces */
+    private int maxPieces = 100000;
+
+    /** worker threads for the main run */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** used to also run the batch with 1, 2, 4... threads */
+    private boolean scaling = false;
+
+    /** board size, 64 by 100000 stresses the engine with a tall sparse board */
+    private int width = Engine.bWidth;
+    private int height = Engine.bHeight;
+
+    /** kind of piece generator, see PieceGenerator.create */
+    private String generator = "uniform";
+
+    /** heuristic the bot plays with */
+    private Heuristic heuristic = new Heuristic();
+
+    /** pieces the bot looks at each move, 1 for the falling piece only */
+    private int beamDepth = 1;
+
+    /** boards the bot keeps at each depth when looking ahead */
+    private int beamWidth = 8;
+
+    /**
+     * Result of one game
+     */
+    static class Result {
+
+        /** pieces locked */
+        final int pieces;
+
+        /** lines cleared */
+        final int lines;
+
+        /** time taken */
+        final long nanos;
+
+        Result(int pieces, int lines, long nanos) {
+            this.pieces = pieces;
+            this.lines = lines;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Plays one game with the bot
+     * @param gameSeed seed for the pieces
+     * @return Result pieces, lines and time of the game
+     */
+    Result play(long gameSeed) {
+        long start = System.nanoTime();
+        Engine engine = new Engine(width, height, PieceGenerator.create(generator, gameSeed));
+        Bot bot = beamDepth == 1 ? new Bot(heuristic, null)
+                : new BeamSearchBot(heuristic, null, beamDepth, beamWidth, 1 << 14);
+        engine.start();
+        while (!engine.isOver() && engine.getPieces() < maxPieces) {
+            if (engine.getCurPiece().getPiece() == Tetris.emptyPiece) {
+                engine.step(Engine.Input.tick);
+            } else {
+                bot.play(engine);
+            }
+        }
+        return new Result(engine.getPieces(), engine.getScore(), System.nanoTime() - start);
+    }
+
+    /**
+     * Plays every game on a pool of worker threads
+     * @param workers number of threads
+     * @return Result[] one result per game
+     */
+    Result[] run(int workers) {
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            return pool.submit(() -> IntStream.range(0, games).parallel()
+                    .mapToObj(i -> play(seed + i))
+                    .toArray(Result[]::new)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Simulation failed", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Prints throughput and score distribution of a batch
+     * @param results one result per game
+     * @param wallNanos time the batch took
+     * @param workers number of threads used
+     * @return double pieces per second
+     */
+    double report(Result[] results, long wallNanos, int workers) {
+        long pieces = 0;
+        long lines = 0;
+        int[] scores = new int[results.length];
+        for (int i = 0; i < results.length; i++) {
+            pieces += results[i].pieces;
+            lines += results[i].lines;
+            scores[i] = results[i].lines * 100;
+        }
+        Arrays.sort(scores);
+        double seconds = wallNanos / 1e9;
+        double rate = pieces / seconds;
+
+        System.out.printf("threads=%d games=%d time=%.2fs pieces=%d pieces/s=%.0f%n",
+                workers, results.length, seconds, pieces, rate);
+        System.out.printf("lines/game=%.1f score min=%d p25=%d median=%d p75=%d p90=%d max=%d%n",
+                (double) lines / results.length, scores[0], percentile(scores, 25),
+                percentile(scores, 50), percentile(scores, 75), percentile(scores, 90),
+                scores[scores.length - 1]);
+        return rate;
+    }
+
+    /**
+     * Value at a percentile of a sorted array
+     * @param sorted values in ascending order
+     * @param p percentile from 0 to 100
+     * @return int value
+     */
+    private static int percentile(int[] sorted, int p) {
+        int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    /**
+     * Runs the main batch and, if asked, the scaling batches
+     */
+    void runAll() {
+        long start = System.nanoTime();
+        Result[] results = run(threads);
+        report(results, System.nanoTime() - start, threads);
+
+        if (!scaling) {
+            return;
+        }
+
+        // same games on more and more threads, seeds make the work identical
+        System.out.println();
+        System.out.println("per-core scaling:");
+        double single = 0;
+        int workers = 1;
+        while (true) {
+            start = System.nanoTime();
+            results = run(workers);
+            double rate = report(results, System.nanoTime() - start, workers);
+            if (workers == 1) {
+                single = rate;
+            }
+            System.out.printf("speedup=%.2fx efficiency=%.0f%%%n%n", rate / single, 100 * rate / single / workers);
+            if (workers == threads) {
+                break;
+            }
+            workers = Math.min(threads, workers * 2);
+        }
+    }
+
+    /**
+     * Reads command line options
+     * @param args options
+     */
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-games":
+                    games = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "-pieces":
+                    maxPieces = Integer.parseInt(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-generator":
+                    generator = args[++i];
+                    PieceGenerator.checkKind(generator);
+                    break;
+                case "-scaling":
+                    scaling = true;
+                    break;
+                case "-weights":
+                    heuristic = new Heuristic(Double.parseDouble(args[++i]), Double.parseDouble(args[++i]),
+                            Double.parseDouble(args[++i]), Double.parseDouble(args[++i]));
+                    break;
+                case "-size":
+                    width = Integer.parseInt(args[++i]);
+                    height = Integer.parseInt(args[++i]);
+                    Engine.checkSize(width, height);
+                    break;
+                case "-beam":
+                    beamDepth = Integer.parseInt(args[++i]);
+                    beamWidth = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (games < 1 || threads < 1 || maxPieces < 1 || beamDepth < 1 || beamWidth < 1) {
+            throw new IllegalArgumentException("games, threads, pieces and beam must be positive");
+        }
+    }
+
+    /**
+     * Main method to run simulations
+     * @param args -games n -seed s -pieces p -threads t -generator uniform|bag|history -scaling
+     *             -weights height lines holes bumpiness -beam depth width -size width height
+     */
+    public static void main(String[] args) {
+        Simulator sim = new Simulator();
+        try {
+            sim.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java tetris.Simulator [-games n] [-seed s] [-pieces p] [-threads t]"
+                    + " [-generator uniform|bag|history] [-scaling]"
+                    + " [-weights height lines holes bumpiness] [-beam depth width]"
+                    + " [-size width height]");
+            System.exit(1);
+        }
+        sim.runAll();
+    }
+}
@@ -0,0 +1,55 @@
+package tetris;
+
+/**
+ * Snapshots of the last few frames of a match, all allocated up front so
+ * saving one every frame never allocates. Frame f is kept in slot f modulo
+ * the capacity until it is overwritten capacity frames later.
+ */
+public class SnapshotRing {
+
+    /** snapshot of each slot */
+    private final VersusMatch.Snapshot[] slots;
+
+    /**
+     * Creates a ring for a match
+     * @param match match the snapshots are taken of
+     * @param capacity number of frames kept
+     */
+    public SnapshotRing(VersusMatch match, int capacity) {
+        slots = new VersusMatch.Snapshot[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = match.newSnapshot();
+        }
+    }
+
+    /**
+     * Saves the match as it is at the start of its current frame
+     * @param match match to save
+     */
+    public void save(VersusMatch match) {
+        match.save(slots[match.getFrame() % slots.length]);
+    }
+
+    /**
+     * Puts the match back to the start of a frame
+     * @param match match to restore
+     * @param frame frame to go back to
+     * @return false if that frame is no longer kept
+     */
+    public boolean restore(VersusMatch match, int frame) {
+        VersusMatch.Snapshot s = slots[frame % slots.length];
+        if (s.getFrame() != frame) {
+            return false;
+        }
+        match.restore(s);
+        return true;
+    }
+
+    /**
+     * Getter for number of frames kept
+     * @return int capacity
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,546 @@
+package tetris;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams live games to spectators over a local TCP socket from a single
+ * non-blocking thread. A spectator sends "watch id" and is then sent a
+ * snapshot of that game followed by deltas holding only the rows that
+ * changed. Each delta is encoded once by the game's Feed and the same
+ * bytes are queued for every spectator of the game. All frames queued
+ * for a spectator in one pass go out in one write.
+ * <p>
+ * A spectator that stops reading is never allowed to hold up the game or
+ * the other spectators. Once its buffer is full, further deltas are
+ * dropped for it. When the buffer has drained it is sent a fresh
+ * snapshot and picks up from there.
+ * <p>
+ * Every frame starts with its length as an int, then a type byte, the
+ * session id and the sequence number of the change as ints. The score as
+ * an int and the falling piece as shape, rotation, x and y follow. A
+ * snapshot ('S') then has the width and height as shorts and one long of
+ * occupied cells per row. A delta ('D') has a count of changed rows as a
+ * short, then each row number as a short and its cells as a long.
+ */
+public class SpectatorBroadcaster implements Runnable {
+
+    /** most frame bytes held for a spectator that isn't reading */
+    private static final int outLimit = 64 * 1024;
+
+    /** longest command line accepted */
+    private static final int lineLimit = 64;
+
+    /** bytes in front of the rows of every frame */
+    private static final int headerBytes = 4 + 1 + 4 + 4 + 4 + 1 + 1 + 2 + 2;
+
+    /**
+     * Changes of one game, encoded once for all its spectators
+     */
+    public static final class Feed {
+
+        /** broadcaster the frames go to */
+        private final SpectatorBroadcaster owner;
+
+        /** session number spectators ask for */
+        private final int id;
+
+        /** game being watched, its lock guards the fields below */
+        private final Engine engine;
+
+        /** rows as last published */
+        private final long[] last;
+
+        /** falling piece and score as last published */
+        private int lastScore = -1, lastShape = -1, lastRotation = -1, lastX, lastY;
+
+        /** rows found changed by the last publish */
+        private final int[] changed;
+
+        /** number of the last change published */
+        private int seq = 0;
+
+        /** spectators of this game, only used on the network thread */
+        private final List<Viewer> viewers = new ArrayList<>();
+
+        /** number of spectators, so changes nobody watches aren't encoded */
+        private volatile int watching = 0;
+
+        Feed(SpectatorBroadcaster owner, int id, Engine engine) {
+            this.owner = owner;
+            this.id = id;
+            this.engine = engine;
+            last = new long[engine.getHeight()];
+            changed = new int[engine.getHeight()];
+        }
+
+        /**
+         * Queues what changed since the last publish for every spectator,
+         * caller must hold the engine lock
+         */
+        public void publish() {
+            int count = 0;
+            for (int y = 0; y < last.length; ++y) {
+                long bits = engine.rowBits(y);
+                if (bits != last[y]) {
+                    last[y] = bits;
+                    changed[count++] = y;
+                }
+            }
+            Piece p = engine.getCurPiece();
+            int shape = p.getPiece().ordinal();
+            if (count == 0 && engine.getScore() == lastScore && shape == lastShape
+                    && p.getRotation() == lastRotation && engine.getCurX() == lastX && engine.getCurY() == lastY) {
+                return;
+            }
+            lastScore = engine.getScore();
+            lastShape = shape;
+            lastRotation = p.getRotation();
+            lastX = engine.getCurX();
+            lastY = engine.getCurY();
+            ++seq;
+            if (watching == 0) {
+                return;
+            }
+
+            ByteBuffer b = header('D', headerBytes + 2 + count * 10);
+            b.putShort((short) count);
+            for (int i = 0; i < count; ++i) {
+                b.putShort((short) changed[i]);
+                b.putLong(last[changed[i]]);
+            }
+            owner.offer(new Frame(this, seq, b.array()));
+        }
+
+        /**
+         * Encodes the whole game as last published, caller must hold the
+         * engine lock
+         * @return Frame snapshot
+         */
+        private Frame snapshot() {
+            ByteBuffer b = header('S', headerBytes + 4 + last.length * 8);
+            b.putShort((short) engine.getWidth());
+            b.putShort((short) last.length);
+            for (long row : last) {
+                b.putLong(row);
+            }
+            return new Frame(this, seq, b.array());
+        }
+
+        /**
+         * Starts a frame with the fields every frame has
+         * @param type 'S' or 'D'
+         * @param length bytes in the frame
+         * @return ByteBuffer frame positioned after the header
+         */
+        private ByteBuffer header(char type, int length) {
+            ByteBuffer b = ByteBuffer.allocate(length);
+            b.putInt(length - 4);
+            b.put((byte) type);
+            b.putInt(id);
+            b.putInt(seq);
+            b.putInt(lastScore);
+            b.put((byte) lastShape);
+            b.put((byte) lastRotation);
+            b.putShort((short) lastX);
+            b.putShort((short) lastY);
+            return b;
+        }
+    }
+
+    /**
+     * Encoded change of one game
+     */
+    private static final class Frame {
+
+        /** game it belongs to */
+        final Feed feed;
+
+        /** number of the change, later changes have larger numbers */
+        final int seq;
+
+        /** bytes sent to every spectator */
+        final byte[] bytes;
+
+        Frame(Feed feed, int seq, byte[] bytes) {
+            this.feed = feed;
+            this.seq = seq;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * One connected spectator
+     */
+    private static final class Viewer {
+
+        /** key of the spectator's channel */
+        final SelectionKey key;
+
+        /** bytes read but not yet part of a whole line */
+        final ByteBuffer in = ByteBuffer.allocate(lineLimit);
+
+        /** frames not yet written, in write mode */
+        final ByteBuffer out = ByteBuffer.allocate(outLimit);
+
+        /** game being watched, null until asked for */
+        Feed feed;
+
+        /** number of the last change queued */
+        int seq;
+
+        /** used to send a snapshot once the buffer has drained */
+        boolean resync = false;
+
+        /** used to write once after several frames were queued */
+        boolean pending = false;
+
+        Viewer(SelectionKey key) {
+            this.key = key;
+        }
+    }
+
+    /** local port to listen on */
+    private final int port;
+
+    /** games spectators may ask for, by session number */
+    private final Map<Integer, Feed> feeds = new ConcurrentHashMap<>();
+
+    /** frames from game threads, not yet queued for spectators */
+    private final Queue<Frame> frames = new ConcurrentLinkedQueue<>();
+
+    /** used to wake the network thread once for many frames */
+    private final AtomicBoolean wakePending = new AtomicBoolean();
+
+    /** spectators with frames queued since the last write */
+    private final List<Viewer> toFlush = new ArrayList<>();
+
+    /** selector of the network thread, null until started */
+    private volatile Selector selector;
+
+    /** connected spectators */
+    private final AtomicInteger viewers = new AtomicInteger();
+
+    /** bytes written to spectators */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /** frames queued for spectators */
+    private final LongAdder framesSent = new LongAdder();
+
+    /** snapshots sent to spectators joining or falling behind */
+    private final LongAdder snapshots = new LongAdder();
+
+    /**
+     * Creates a broadcaster, nothing is served until start is called
+     * @param port local port to listen on
+     */
+    public SpectatorBroadcaster(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Opens the port and starts the network thread
+     * @throws IOException if the port can't be opened
+     */
+    public void start() throws IOException {
+        Selector s = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(s, SelectionKey.OP_ACCEPT);
+        selector = s;
+        System.out.println("Serving spectators on " + server.getLocalAddress());
+
+        Thread t = new Thread(this, "tetris-spectators");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Makes a game available to spectators
+     * @param id session number spectators ask for
+     * @param engine game to watch
+     * @return Feed to publish the game's changes to
+     */
+    public Feed add(int id, Engine engine) {
+        Feed f = new Feed(this, id, engine);
+        feeds.put(id, f);
+        return f;
+    }
+
+    /**
+     * Stops offering a game to new spectators
+     * @param id session number
+     */
+    public void remove(int id) {
+        feeds.remove(id);
+    }
+
+    /**
+     * Hands a frame to the network thread
+     * @param f frame
+     */
+    private void offer(Frame f) {
+        frames.add(f);
+        Selector s = selector;
+        if (s != null && wakePending.compareAndSet(false, true)) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Getter for connected spectators
+     * @return int spectators
+     */
+    public int getViewers() {
+        return viewers.get();
+    }
+
+    /**
+     * Getter for bytes written to spectators
+     * @return long bytes
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Getter for frames queued for spectators
+     * @return long frames
+     */
+    public long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    /**
+     * Getter for snapshots sent to spectators joining or falling behind
+     * @return long snapshots
+     */
+    public long getSnapshots() {
+        return snapshots.sum();
+    }
+
+    /**
+     * Loop body, runs on the network thread
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            wakePending.set(false);
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read((Viewer) key.attachment());
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush((Viewer) key.attachment());
+                    }
+                } catch (IOException e) {
+                    close((Viewer) key.attachment());
+                }
+            }
+
+            // queue every waiting frame, then write once per spectator
+            for (Frame f = frames.poll(); f != null; f = frames.poll()) {
+                for (Viewer v : f.feed.viewers) {
+                    queue(v, f);
+                }
+            }
+            for (Viewer v : toFlush) {
+                v.pending = false;
+                try {
+                    if (v.key.isValid()) {
+                        flush(v);
+                    }
+                } catch (IOException e) {
+                    close(v);
+                }
+            }
+            toFlush.clear();
+        }
+    }
+
+    /**
+     * Accepts a spectator
+     * @param server listening channel
+     * @throws IOException if the connection can't be set up
+     */
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+        key.attach(new Viewer(key));
+        viewers.incrementAndGet();
+    }
+
+    /**
+     * Reads what a spectator sent and handles every whole line
+     * @param v spectator
+     * @throws IOException if the connection failed
+     */
+    private void read(Viewer v) throws IOException {
+        if (((SocketChannel) v.key.channel()).read(v.in) < 0) {
+            close(v);
+            return;
+        }
+        v.in.flip();
+        int start = 0;
+        for (int i = 0; i < v.in.limit(); ++i) {
+            if (v.in.get(i) == '\n') {
+                String line = new String(v.in.array(), start, i - start, StandardCharsets.US_ASCII).trim();
+                start = i + 1;
+                watch(v, line);
+            }
+        }
+        v.in.position(start);
+        v.in.compact();
+        if (!v.in.hasRemaining()) {
+            close(v);
+        }
+    }
+
+    /**
+     * Switches a spectator to the game it asked for and sends its snapshot
+     * @param v spectator
+     * @param line "watch id"
+     * @throws IOException if the connection failed
+     */
+    private void watch(Viewer v, String line) throws IOException {
+        Feed f = null;
+        if (line.startsWith("watch ")) {
+            try {
+                f = feeds.get(Integer.parseInt(line.substring(6).trim()));
+            } catch (NumberFormatException e) {
+                // answered below
+            }
+        }
+        if (f == null) {
+            close(v);
+            return;
+        }
+        unwatch(v);
+        v.feed = f;
+        f.viewers.add(v);
+        ++f.watching;
+        v.resync = true;
+        flush(v);
+    }
+
+    /**
+     * Stops sending a spectator its game
+     * @param v spectator
+     */
+    private void unwatch(Viewer v) {
+        if (v.feed != null) {
+            v.feed.viewers.remove(v);
+            --v.feed.watching;
+            v.feed = null;
+        }
+    }
+
+    /**
+     * Queues a frame for a spectator, or drops it and asks for a snapshot
+     * once the spectator's buffer is full
+     * @param v spectator
+     * @param f frame of the spectator's game
+     */
+    private void queue(Viewer v, Frame f) {
+        if (v.resync || f.seq <= v.seq) {
+            return;
+        }
+        if (f.bytes.length > v.out.remaining()) {
+            v.resync = true;
+            return;
+        }
+        v.out.put(f.bytes);
+        v.seq = f.seq;
+        framesSent.increment();
+        if (!v.pending) {
+            v.pending = true;
+            toFlush.add(v);
+        }
+    }
+
+    /**
+     * Writes queued frames, sends a snapshot once a spectator that fell
+     * behind has drained, and waits for the socket to take the rest
+     * @param v spectator
+     * @throws IOException if the connection failed
+     */
+    private void flush(Viewer v) throws IOException {
+        SocketChannel ch = (SocketChannel) v.key.channel();
+        if (v.resync && v.out.position() == 0 && v.feed != null) {
+            Frame snap;
+            synchronized (v.feed.engine) {
+                snap = v.feed.snapshot();
+            }
+            v.out.put(snap.bytes);
+            v.seq = snap.seq;
+            v.resync = false;
+            snapshots.increment();
+        }
+        v.out.flip();
+        bytesSent.add(ch.write(v.out));
+        v.out.compact();
+        if (v.out.position() > 0 || v.resync) {
+            v.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            v.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Drops a spectator
+     * @param v spectator
+     */
+    private void close(Viewer v) {
+        if (v == null || !v.key.isValid()) {
+            return;
+        }
+        unwatch(v);
+        v.key.cancel();
+        viewers.decrementAndGet();
+        try {
+            v.key.channel().close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package tetris;
+
+/**
+ * Small seedable random number generator (SplitMix64). The whole state is
+ * one long, so it never allocates, is cheap to copy and games started with
+ * the same seed see the same numbers.
+ */
+public class SplitMix {
+
+    /** generator state, advanced by a fixed odd constant each call */
+    private long state;
+
+    /**
+     * Creates a generator
+     * @param seed starting state
+     */
+    public SplitMix(long seed) {
+        state = seed;
+    }
+
+    /**
+     * Next 64 random bits
+     * @return long random value
+     */
+    public long nextLong() {
+        return mix(state += 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Scrambles the bits of a value, the SplitMix finalizer. Values that
+     * differ in one bit give unrelated results, so it also turns counters
+     * into hash keys
+     * @param z value
+     * @return long scrambled value
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Unbiased random number below a bound, using multiply and shift with
+     * rejection instead of a division on every call
+     * @param bound upper bound, must be positive
+     * @return int from 0 to bound - 1
+     */
+    public int nextInt(int bound) {
+        long m = (nextLong() >>> 32) * bound;
+        long low = m & 0xFFFFFFFFL;
+        if (low < bound) {
+            long threshold = (0x100000000L - bound) % bound;
+            while (low < threshold) {
+                m = (nextLong() >>> 32) * bound;
+                low = m & 0xFFFFFFFFL;
+            }
+        }
+        return (int) (m >>> 32);
+    }
+
+    /**
+     * Getter for generator state
+     * @return long state
+     */
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * Setter for generator state
+     * @param s state from getState
+     */
+    public void setState(long s) {
+        state = s;
+    }
+}
@@ -0,0 +1,193 @@
+package tetris;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Does all file work on one background thread so the Swing thread never
+ * waits for the disk. Every score is added to a ScoreDatabase, and the
+ * mapped pages are written behind: scores added within a short delay are
+ * forced to disk together. The old score table file is imported the
+ * first time the database is opened.
+ */
+public class Storage {
+
+    /** number of rows in the high score table */
+    static final int tableSize = 10;
+
+    /** time writes are held back so several can be forced at once */
+    private static final long writeDelayMillis = 250;
+
+    /** every score ever played */
+    private final File databaseFile;
+
+    /** old comma separated score table, imported into a new database */
+    private final File legacyFile;
+
+    /** background thread for file work */
+    private final ScheduledExecutorService io;
+
+    /** score database, only used on the background thread, null until opened */
+    private ScoreDatabase db;
+
+    /** used to know if a write to disk is already scheduled */
+    private final AtomicBoolean forcePending = new AtomicBoolean();
+
+    /**
+     * Creates a store for files in a folder and makes sure pending writes
+     * finish when the program exits
+     * @param dir folder of the score files
+     */
+    public Storage(File dir) {
+        databaseFile = new File(dir, "scores.db");
+        legacyFile = new File(dir, "highscores.dat");
+        io = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tetris-storage");
+            t.setDaemon(true);
+            return t;
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "tetris-storage-exit"));
+    }
+
+    /**
+     * Reads the high score table in the background
+     * @return CompletableFuture table of name and score rows, best first,
+     * at most tableSize rows long
+     */
+    public CompletableFuture<String[][]> loadScores() {
+        return query(d -> d.top(tableSize));
+    }
+
+    /**
+     * Adds a score in the background
+     * @param name player name
+     * @param score score
+     */
+    public void addScore(String name, int score) {
+        io.execute(() -> {
+            try {
+                open().add(name, score);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            // only the first score since the last write schedules one
+            if (forcePending.compareAndSet(false, true)) {
+                io.schedule(this::force, writeDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Asks the score database something in the background
+     * @param q question, runs on the background thread
+     * @param <T> type of the answer
+     * @return CompletableFuture answer
+     */
+    public <T> CompletableFuture<T> query(Function<ScoreDatabase, T> q) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return q.apply(open());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, io);
+    }
+
+    /**
+     * Runs other file work, such as saving a replay, on the background thread
+     * @param task work to run
+     */
+    public void execute(Runnable task) {
+        io.execute(task);
+    }
+
+    /**
+     * Finishes queued work and writes any unsaved scores
+     */
+    public void close() {
+        io.shutdown();
+        try {
+            io.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (db != null) {
+            try {
+                db.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes added scores to disk
+     */
+    private void force() {
+        forcePending.set(false);
+        if (db != null) {
+            db.force();
+        }
+    }
+
+    /**
+     * Opens the score database on first use, importing the old score table
+     * into a new one, must run on the background thread
+     * @return ScoreDatabase open database
+     * @throws IOException if the database can't be opened
+     */
+    private ScoreDatabase open() throws IOException {
+        if (db != null) {
+            return db;
+        }
+        db = new ScoreDatabase(databaseFile);
+        if (db.size() == 0 && legacyFile.isFile()) {
+            for (String[] row : readLegacy()) {
+
+                // padding rows of the old table aren't real scores
+                if (!row[0].equals("---") || !row[1].equals("0")) {
+                    db.add(row[0], Integer.parseInt(row[1]));
+                }
+            }
+            db.force();
+        }
+        return db;
+    }
+
+    /**
+     * Reads the old comma separated score table
+     * @return String[][] name and score rows
+     * @throws IOException if the file can't be read
+     */
+    private String[][] readLegacy() throws IOException {
+        List<String[]> table = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(legacyFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length == 2) {
+                    try {
+                        Integer.parseInt(parts[1].trim());
+                        table.add(new String[]{parts[0], parts[1].trim()});
+                    } catch (NumberFormatException e) {
+                        // skip broken rows
+                    }
+                }
+            }
+        }
+        return table.toArray(new String[0][]);
+    }
+}
@@ -0,0 +1,213 @@
+package tetris;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Color themes and pre-rendered cell images. Each piece color of the
+ * selected theme is drawn once into an image the size of a board square,
+ * and only drawn again when the square size or theme changes, so painting
+ * the board is just copying images.
+ */
+public class Theme {
+
+    /** colors for each theme, indexed by piece ordinal */
+    private static final Color[][] palettes = {
+
+            // default colors
+            {
+                    new Color(0, 0, 0),
+                    new Color(255, 0, 0),
+                    new Color(0, 255, 37),
+                    new Color(0, 10, 255),
+                    new Color(240, 238, 0),
+                    new Color(204, 0, 222),
+                    new Color(0, 241, 239),
+                    new Color(255, 154, 0)
+            },
+
+            // dull colors
+            {
+                    new Color(0, 0, 0),
+                    new Color(135, 0, 0),
+                    new Color(0, 125, 22),
+                    new Color(0, 4, 130),
+                    new Color(179, 178, 0),
+                    new Color(123, 0, 133),
+                    new Color(0, 128, 127),
+                    new Color(182, 110, 0)
+            },
+
+            // black and white colors
+            {
+                    new Color(0, 0, 0),
+                    new Color(255, 255, 255),
+                    new Color(168, 168, 168),
+                    new Color(21, 21, 21),
+                    new Color(113, 113, 113),
+                    new Color(73, 73, 73),
+                    new Color(100, 100, 100),
+                    new Color(220, 220, 220)
+            },
+
+            // fall colors
+            {
+                    new Color(0, 0, 0),
+                    new Color(187, 0, 0),
+                    new Color(238, 236, 0),
+                    new Color(242, 140, 0),
+                    new Color(192, 111, 0),
+                    new Color(172, 171, 0),
+                    new Color(242, 0, 0),
+                    new Color(154, 88, 0)
+            },
+
+            // spring colors
+            {
+                    new Color(0, 0, 0),
+                    new Color(0, 232, 255),
+                    new Color(0, 255, 44),
+                    new Color(0, 169, 29),
+                    new Color(255, 253, 0),
+                    new Color(255, 0, 254),
+                    new Color(177, 0, 176),
+                    new Color(0, 10, 255)
+            },
+
+            // black colors
+            {
+                    new Color(0, 0, 0),
+                    new Color(0, 0, 0),
+                    new Color(0, 0, 0),
+                    new Color(0, 0, 0),
+                    new Color(0, 0, 0),
+                    new Color(0, 0, 0),
+                    new Color(0, 0, 0),
+                    new Color(0, 0, 0)
+            }
+    };
+
+    /** selected theme */
+    private final int color;
+
+    /** size the images were drawn for */
+    private int cellWidth = -1;
+    private int cellHeight = -1;
+
+    /** cell image for each piece */
+    private final BufferedImage[] sprites = new BufferedImage[Tetris.values().length];
+
+    /** outline image for each piece, drawn where it would land */
+    private final BufferedImage[] ghosts = new BufferedImage[Tetris.values().length];
+
+    /**
+     * Creates cache for a theme
+     * @param c int to choose color array
+     */
+    public Theme(int c) {
+        color = c;
+    }
+
+    /**
+     * Set colors to use for tetromino pieces
+     * @param c int to choose color array
+     * @return color array to use
+     */
+    public static Color[] chooseColor(int c) {
+
+        // set default colors
+        if (c < 0 || c >= palettes.length) {
+            return palettes[0];
+        }
+        return palettes[c];
+    }
+
+    /**
+     * Makes sure cell images match the current square size
+     * @param gc graphics configuration of the board, or null if not showing
+     * @param w square width
+     * @param h square height
+     */
+    public void prepare(GraphicsConfiguration gc, int w, int h) {
+        if (w == cellWidth && h == cellHeight) {
+            return;
+        }
+        cellWidth = w;
+        cellHeight = h;
+
+        Color[] colors = chooseColor(color);
+        for (int i = 0; i < sprites.length; i++) {
+            if (w <= 0 || h <= 0) {
+                sprites[i] = null;
+                ghosts[i] = null;
+                continue;
+            }
+            sprites[i] = gc != null ? gc.createCompatibleImage(w, h)
+                    : new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics g = sprites[i].getGraphics();
+            drawCell(g, w, h, colors[i]);
+            g.dispose();
+
+            ghosts[i] = gc != null ? gc.createCompatibleImage(w, h, Transparency.BITMASK)
+                    : new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            g = ghosts[i].getGraphics();
+            drawGhost(g, w, h, colors[i]);
+            g.dispose();
+        }
+    }
+
+    /**
+     * Gets image of one board square
+     * @param piece tetromino shape
+     * @return cell image, or null if the board has no size yet
+     */
+    public BufferedImage sprite(Tetris piece) {
+        return sprites[piece.ordinal()];
+    }
+
+    /**
+     * Gets image of one square of the ghost piece
+     * @param piece tetromino shape
+     * @return outline image, or null if the board has no size yet
+     */
+    public BufferedImage ghost(Tetris piece) {
+        return ghosts[piece.ordinal()];
+    }
+
+    /**
+     * Draws the outline of one square, the rest is left see through
+     * @param g graphics object
+     * @param w square width
+     * @param h square height
+     * @param c piece color
+     */
+    private static void drawGhost(Graphics g, int w, int h, Color c) {
+        g.setColor(c.darker());
+        g.drawRect(1, 1, w - 3, h - 3);
+    }
+
+    /**
+     * Fills color for one square
+     * @param g graphics object
+     * @param w square width
+     * @param h square height
+     * @param c piece color
+     */
+    private static void drawCell(Graphics g, int w, int h, Color c) {
+
+        // logic to fill shapes with colors
+        g.setColor(c);
+        g.fillRect(1, 1, w - 2, h - 2);
+        g.setColor(c.brighter());
+        g.drawLine(0, h - 1, 0, 0);
+        g.drawLine(0, 0, w - 1, 0);
+        g.setColor(c.darker());
+        g.drawLine(1, h - 1, w - 1, h - 1);
+        g.drawLine(w - 1, h - 1, w - 1, 1);
+    }
+}
@@ -0,0 +1,182 @@
+package tetris;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ticks many sessions on a few threads, one per core by default, instead
+ * of giving every game a thread or timer of its own. Each worker keeps its
+ * sessions in a queue ordered by when their next tick is due and sleeps
+ * until the earliest one, so an idle session costs nothing between ticks.
+ */
+public class TickScheduler {
+
+    /**
+     * One thread and the sessions it ticks
+     */
+    private final class Worker implements Runnable {
+
+        /** sessions handed over by other threads, not yet scheduled */
+        private final Queue<Session> incoming = new ConcurrentLinkedQueue<>();
+
+        /** sessions by when their next tick is due, only used by this worker */
+        private final PriorityQueue<Session> due = new PriorityQueue<>(
+                (a, b) -> Long.signum(a.nextTick - b.nextTick));
+
+        /** how late ticks ran, locked while written or read */
+        private final LatencyHistogram lateness = new LatencyHistogram();
+
+        /** thread running this worker */
+        private Thread thread;
+
+        /**
+         * Loop body, runs on the worker thread
+         */
+        @Override
+        public void run() {
+            while (running) {
+                for (Session s = incoming.poll(); s != null; s = incoming.poll()) {
+
+                    // spread sessions started together across the tick
+                    s.nextTick = System.nanoTime() + s.getTickNanos() / 64 * (1 + (s.getId() & 63));
+                    due.add(s);
+                }
+                Session s = due.peek();
+                if (s == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (now - s.nextTick < 0) {
+                    LockSupport.parkNanos(this, s.nextTick - now);
+                    continue;
+                }
+
+                due.poll();
+                if (s.isClosed()) {
+                    sessions.decrementAndGet();
+                    continue;
+                }
+                synchronized (lateness) {
+                    lateness.record(now - s.nextTick);
+                }
+                s.tick();
+                ticks.increment();
+
+                // too far behind, drop the missed ticks instead of spiralling
+                s.nextTick += s.getTickNanos();
+                if (now - s.nextTick >= 0) {
+                    droppedTicks.add((now - s.nextTick) / s.getTickNanos() + 1);
+                    s.nextTick = now + s.getTickNanos();
+                }
+                due.add(s);
+            }
+        }
+    }
+
+    /** worker threads */
+    private final Worker[] workers;
+
+    /** worker the next session goes to */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** sessions being ticked */
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /** ticks run */
+    private final LongAdder ticks = new LongAdder();
+
+    /** ticks skipped because a worker fell too far behind */
+    private final LongAdder droppedTicks = new LongAdder();
+
+    /** used to stop the workers */
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts the workers
+     * @param threads number of worker threads
+     */
+    public TickScheduler(int threads) {
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Worker();
+            Thread t = new Thread(workers[i], "tetris-ticks-" + i);
+            t.setDaemon(true);
+            workers[i].thread = t;
+            t.start();
+        }
+    }
+
+    /**
+     * Starts ticking a session, it is dropped once closed
+     * @param s session to tick
+     */
+    public void add(Session s) {
+        Worker w = workers[Math.floorMod(next.getAndIncrement(), workers.length)];
+        sessions.incrementAndGet();
+        w.incoming.add(s);
+        LockSupport.unpark(w.thread);
+    }
+
+    /**
+     * Stops the workers
+     */
+    public void stop() {
+        running = false;
+        for (Worker w : workers) {
+            LockSupport.unpark(w.thread);
+        }
+    }
+
+    /**
+     * Getter for number of worker threads
+     * @return int threads
+     */
+    public int getThreads() {
+        return workers.length;
+    }
+
+    /**
+     * Getter for sessions being ticked, closed ones count until their next
+     * tick would have been due
+     * @return int sessions
+     */
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * Getter for ticks run
+     * @return long ticks
+     */
+    public long getTicks() {
+        return ticks.sum();
+    }
+
+    /**
+     * Getter for ticks skipped because a worker fell too far behind
+     * @return long ticks
+     */
+    public long getDroppedTicks() {
+        return droppedTicks.sum();
+    }
+
+    /**
+     * Collects how late ticks ran on every worker since the last call
+     * @return LatencyHistogram lateness of every tick since the last call
+     */
+    public LatencyHistogram takeLateness() {
+        LatencyHistogram all = new LatencyHistogram();
+        for (Worker w : workers) {
+            synchronized (w.lateness) {
+                all.add(w.lateness);
+                w.lateness.reset();
+            }
+        }
+        return all;
+    }
+}
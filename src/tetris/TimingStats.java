@@ -0,0 +1,93 @@
+package tetris;
+
+/**
+ * Running count, mean, deviation and worst case of a series of durations.
+ * Written by one thread and read by others, so readers may see a value
+ * that is one sample behind.
+ */
+public class TimingStats {
+
+    /** number of samples */
+    private volatile long count;
+
+    /** sum of samples in nanoseconds */
+    private volatile long total;
+
+    /** sum of squared samples in milliseconds, for the deviation */
+    private volatile double totalSquares;
+
+    /** largest sample in nanoseconds */
+    private volatile long max;
+
+    /**
+     * Adds one sample
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        double ms = nanos / 1e6;
+        count = count + 1;
+        total = total + nanos;
+        totalSquares = totalSquares + ms * ms;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    /**
+     * Forgets all samples
+     */
+    public void reset() {
+        count = 0;
+        total = 0;
+        totalSquares = 0;
+        max = 0;
+    }
+
+    /**
+     * Getter for number of samples
+     * @return long count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Average sample
+     * @return double milliseconds
+     */
+    public double getMeanMillis() {
+        long n = count;
+        return n == 0 ? 0 : total / 1e6 / n;
+    }
+
+    /**
+     * Standard deviation of the samples
+     * @return double milliseconds
+     */
+    public double getDeviationMillis() {
+        long n = count;
+        if (n == 0) {
+            return 0;
+        }
+        double mean = getMeanMillis();
+        return Math.sqrt(Math.max(0, totalSquares / n - mean * mean));
+    }
+
+    /**
+     * Largest sample
+     * @return double milliseconds
+     */
+    public double getMaxMillis() {
+        return max / 1e6;
+    }
+
+    /**
+     * Short summary for logs
+     * @return String summary
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3fms sd=%.3fms max=%.3fms",
+                getCount(), getMeanMillis(), getDeviationMillis(), getMaxMillis());
+    }
+}
@@ -0,0 +1,120 @@
+package tetris;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size table of boards already reached by a search, safe to share
+ * between threads without locks. Each entry holds a board's hash and the
+ * best score it was reached with. Entries are two longs: the data, and the
+ * hash xored with the data, so an entry torn by two threads writing at
+ * once fails the check and reads as missing instead of wrong.
+ * <p>
+ * Each hash has a bucket of two entries. A new board goes in the entry
+ * left by an earlier search, or else the one with the lower score, so the
+ * table never grows and stale boards are the first to go.
+ */
+public class TranspositionTable {
+
+    /** entries per bucket */
+    private static final int ways = 2;
+
+    /** data and check of every entry, 2 longs each */
+    private final AtomicLongArray entries;
+
+    /** number of buckets - 1 */
+    private final int mask;
+
+    /** lookups, lookups that found the board, and entries replaced */
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty table
+     * @param entries most boards kept, rounded up to a power of two
+     */
+    public TranspositionTable(int entries) {
+        int buckets = Integer.highestOneBit(Math.max(1, entries / ways - 1)) << 1;
+        mask = buckets - 1;
+        this.entries = new AtomicLongArray(buckets * ways * 2);
+    }
+
+    /**
+     * Records that a search reached a board, unless it was already reached
+     * at least as well in the same search
+     * @param key hash of the board and anything else that tells it apart
+     * @param score score the board was reached with
+     * @param search number of the search, older entries give way first
+     * @return true if the board is new or better, false if it's a duplicate
+     */
+    public boolean offer(long key, double score, int search) {
+        probes.increment();
+        long data = (long) search << 32 | Float.floatToRawIntBits((float) score) & 0xFFFFFFFFL;
+        int base = (int) (SplitMix.mix(key) & mask) * ways * 2;
+
+        int victim = -1;
+        float victimScore = 0;
+        boolean same = false;
+        for (int i = base; i < base + ways * 2; i += 2) {
+            long d = entries.get(i);
+            long check = entries.get(i + 1);
+            boolean current = (int) (d >>> 32) == search && d != 0;
+            if (current && (check ^ d) == key) {
+                if (Float.intBitsToFloat((int) d) >= (float) score) {
+                    hits.increment();
+                    return false;
+                }
+                victim = i;
+                same = true;
+                break;
+            }
+
+            // entries of older searches go first, then the lowest score
+            float s = current ? Float.intBitsToFloat((int) d) : Float.NEGATIVE_INFINITY;
+            if (victim < 0 || s < victimScore) {
+                victim = i;
+                victimScore = s;
+            }
+        }
+        if (!same && victimScore != Float.NEGATIVE_INFINITY) {
+            evictions.increment();
+        }
+        entries.lazySet(victim, data);
+        entries.lazySet(victim + 1, key ^ data);
+        return true;
+    }
+
+    /**
+     * Getter for number of lookups
+     * @return long lookups
+     */
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    /**
+     * Getter for lookups that found the board already reached
+     * @return long hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Getter for boards of the current search pushed out by newer ones
+     * @return long evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Share of lookups that found the board already reached
+     * @return double 0 to 1
+     */
+    public double getHitRate() {
+        long p = probes.sum();
+        return p == 0 ? 0 : (double) hits.sum() / p;
+    }
+}
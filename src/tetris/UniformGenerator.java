@@ -0,0 +1,53 @@
+package tetris;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import tetris.Piece.Tetris;
+
+/**
+ * Every shape is equally likely every time, like the original game.
+ */
+public class UniformGenerator implements PieceGenerator {
+
+    /** all shapes, emptyPiece is index 0 */
+    private static final Tetris[] shapes = Tetris.values();
+
+    /** source of random numbers */
+    private final SplitMix random;
+
+    /**
+     * Creates a generator
+     * @param seed starting state of the random numbers
+     */
+    public UniformGenerator(long seed) {
+        random = new SplitMix(seed);
+    }
+
+    @Override
+    public Tetris next() {
+        return shapes[random.nextInt(shapes.length - 1) + 1];
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(random.getState());
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException {
+        random.setState(in.readLong());
+    }
+
+    @Override
+    public void saveState(long[] dst, int offset) {
+        dst[offset] = random.getState();
+        dst[offset + 1] = 0;
+    }
+
+    @Override
+    public void loadState(long[] src, int offset) {
+        random.setState(src[offset]);
+    }
+}
@@ -0,0 +1,188 @@
+package tetris;
+
+/**
+ * Deterministic versus game between several players. Every player gets
+ * the same pieces, and lines cleared are sent as garbage to the next
+ * player still in the game. Given the same seed and the same inputs for
+ * every frame, every copy of a match ends up in exactly the same state,
+ * which is what lets peers run it in lockstep.
+ */
+public class VersusMatch {
+
+    /** garbage lines sent for clearing 0 to 4 lines at once */
+    private static final int[] garbageFor = {0, 0, 1, 2, 4};
+
+    /**
+     * Copy of a whole match for rolling back
+     */
+    public static final class Snapshot {
+
+        /** every player's game */
+        private final Engine.Snapshot[] engines;
+
+        /** frame the snapshot was saved at, -1 if never saved */
+        private int frame = -1;
+
+        Snapshot(Engine.Snapshot[] engines) {
+            this.engines = engines;
+        }
+
+        /**
+         * Getter for frame the snapshot was saved at
+         * @return int frame, -1 if never saved
+         */
+        public int getFrame() {
+            return frame;
+        }
+    }
+
+    /** every player's game */
+    private final Engine[] engines;
+
+    /** frames between gravity ticks */
+    private final int gravityFrames;
+
+    /** garbage lines each player sent this frame */
+    private final int[] sent;
+
+    /** frames played */
+    private int frame = 0;
+
+    /**
+     * Creates and starts a match
+     * @param players number of players
+     * @param generator kind of piece generator, see PieceGenerator.create
+     * @param seed seed shared by every player's pieces
+     * @param gravityFrames frames between gravity ticks
+     */
+    public VersusMatch(int players, String generator, long seed, int gravityFrames) {
+        engines = new Engine[players];
+        for (int i = 0; i < players; ++i) {
+            engines[i] = new Engine(PieceGenerator.create(generator, seed));
+            engines[i].start();
+        }
+        this.gravityFrames = gravityFrames;
+        sent = new int[players];
+    }
+
+    /**
+     * Plays one frame
+     * @param inputs move of each player this frame, none for no move
+     */
+    public void step(Engine.Input[] inputs) {
+        boolean gravity = frame % gravityFrames == gravityFrames - 1;
+        for (int i = 0; i < engines.length; ++i) {
+            Engine e = engines[i];
+            int before = e.getScore();
+            if (inputs[i] != Engine.Input.none) {
+                e.step(inputs[i]);
+            }
+            if (gravity) {
+                e.step(Engine.Input.tick);
+            }
+            sent[i] = garbageFor[Math.min(4, e.getScore() - before)];
+        }
+
+        // garbage is handed over after every player moved, so order doesn't matter
+        for (int i = 0; i < engines.length; ++i) {
+            if (sent[i] == 0) {
+                continue;
+            }
+            for (int k = 1; k < engines.length; ++k) {
+                Engine target = engines[(i + k) % engines.length];
+                if (target.isStarted()) {
+                    target.addGarbage(sent[i]);
+                    break;
+                }
+            }
+        }
+        ++frame;
+    }
+
+    /**
+     * Creates a snapshot that fits this match
+     * @return Snapshot empty snapshot for save
+     */
+    public Snapshot newSnapshot() {
+        Engine.Snapshot[] s = new Engine.Snapshot[engines.length];
+        for (int i = 0; i < engines.length; ++i) {
+            s[i] = engines[i].newSnapshot();
+        }
+        return new Snapshot(s);
+    }
+
+    /**
+     * Copies the whole match into a snapshot
+     * @param s snapshot from newSnapshot of this match
+     */
+    public void save(Snapshot s) {
+        for (int i = 0; i < engines.length; ++i) {
+            engines[i].save(s.engines[i]);
+        }
+        s.frame = frame;
+    }
+
+    /**
+     * Puts the match back the way it was when a snapshot was saved
+     * @param s snapshot saved from this match
+     */
+    public void restore(Snapshot s) {
+        for (int i = 0; i < engines.length; ++i) {
+            engines[i].restore(s.engines[i]);
+        }
+        frame = s.frame;
+    }
+
+    /**
+     * Getter for frames played
+     * @return int frame
+     */
+    public int getFrame() {
+        return frame;
+    }
+
+    /**
+     * Getter for number of players
+     * @return int players
+     */
+    public int getPlayers() {
+        return engines.length;
+    }
+
+    /**
+     * Getter for a player's game
+     * @param player player number
+     * @return Engine game
+     */
+    public Engine getEngine(int player) {
+        return engines[player];
+    }
+
+    /**
+     * Checks if at most one player is still in the game
+     * @return boolean
+     */
+    public boolean isOver() {
+        int left = 0;
+        for (Engine e : engines) {
+            if (e.isStarted()) {
+                ++left;
+            }
+        }
+        return left <= 1;
+    }
+
+    /**
+     * Mixes the state every player can see into one number, so peers can
+     * check they are still playing the same game
+     * @return long checksum
+     */
+    public long checksum() {
+        long h = frame;
+        for (Engine e : engines) {
+            h = SplitMix.mix(h ^ e.getHash());
+            h = SplitMix.mix(h ^ ((long) e.getScore() << 32 | e.getGarbage()));
+        }
+        return h;
+    }
+}
@@ -0,0 +1,265 @@
+package tetris;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays one side of a versus match against other peers over UDP, on one
+ * machine or a LAN, and checks at the end that every peer finished in the
+ * same state. Each peer simulates the whole match with Lockstep at 60
+ * frames a second. The local player makes random moves from a seed.
+ * Every packet repeats the last inputs sent, so a lost packet is covered
+ * by the next one.
+ * <p>
+ * Packets start with a type byte and the player number. An input packet
+ * ('I') then has the first frame as an int, a count byte and one input
+ * ordinal per frame. A checksum packet ('C') has the last frame as an int
+ * and the match checksum as a long.
+ */
+public class VersusPeer {
+
+    /** frames played per second */
+    private static final int fps = 60;
+
+    /** most inputs repeated in one packet */
+    private static final int redundancy = 32;
+
+    /** moves the random player picks from, none most often */
+    private static final Engine.Input[] moves = {Engine.Input.left, Engine.Input.right,
+            Engine.Input.rotateLeft, Engine.Input.rotateRight, Engine.Input.softDrop};
+
+    /** local port */
+    private int port = 7001;
+
+    /** other peers, in player order without this one */
+    private final List<SocketAddress> peers = new ArrayList<>();
+
+    /** player on this peer */
+    private int player = 0;
+
+    /** seed shared by the match */
+    private long seed = 1;
+
+    /** frames to play */
+    private int frames = 3600;
+
+    /** most frames rolled back */
+    private int window = 16;
+
+    /** frames between gravity ticks */
+    private int gravityFrames = 20;
+
+    /** kind of piece generator, see PieceGenerator.create */
+    private String generator = "bag";
+
+    /**
+     * Plays the match and reports whether the peers agree
+     * @throws IOException if the socket fails
+     */
+    void run() throws IOException {
+        int players = peers.size() + 1;
+        VersusMatch match = new VersusMatch(players, generator, seed, gravityFrames);
+        Lockstep lockstep = new Lockstep(match, player, window);
+        SplitMix random = new SplitMix(seed ^ (player + 1) * 0x9E3779B97F4A7C15L);
+
+        DatagramChannel ch = DatagramChannel.open();
+        ch.bind(new InetSocketAddress(port));
+        ch.configureBlocking(false);
+        ByteBuffer in = ByteBuffer.allocate(1024);
+        ByteBuffer out = ByteBuffer.allocate(1024);
+
+        long frameNanos = 1000000000L / fps;
+        long next = System.nanoTime();
+        long stalls = 0;
+        long[] checksums = new long[players];
+        boolean[] heard = new boolean[players];
+        long mine = 0;
+        boolean done = false;
+
+        while (true) {
+
+            // take every packet waiting
+            in.clear();
+            while (ch.receive(in) != null) {
+                in.flip();
+
+                // short or garbled packets are dropped, never trusted
+                int type = in.remaining() >= 2 ? in.get() : 0;
+                int from = type != 0 ? in.get() : -1;
+                if (from >= 0 && from < players && from != player) {
+                    if (type == 'I' && in.remaining() >= 5
+                            && (in.get(in.position() + 4) & 0xFF) <= in.remaining() - 5) {
+                        int first = in.getInt();
+                        int count = in.get() & 0xFF;
+                        for (int i = 0; i < count; ++i) {
+                            int ordinal = in.get();
+                            if (ordinal >= 0 && ordinal < Engine.Input.values().length) {
+                                lockstep.receive(from, first + i, Engine.Input.values()[ordinal]);
+                            }
+                        }
+                    } else if (type == 'C' && in.remaining() >= 12 && in.getInt() == frames - 1) {
+                        checksums[from] = in.getLong();
+                        heard[from] = true;
+                    }
+                }
+                in.clear();
+            }
+
+            long now = System.nanoTime();
+            if (now - next < 0) {
+                LockSupport.parkNanos(Math.min(next - now, 1000000L));
+                continue;
+            }
+            next += frameNanos;
+
+            if (match.getFrame() < frames) {
+                if (lockstep.canAdvance()) {
+                    int r = random.nextInt(64);
+                    Engine.Input move = r < 6 ? moves[r % moves.length] : r == 6 ? Engine.Input.hardDrop
+                            : Engine.Input.none;
+                    lockstep.advance(move);
+                } else {
+                    ++stalls;
+                }
+            } else if (!done && lockstep.slowest() == frames - 1) {
+
+                // every input is in, so the match is final
+                lockstep.settle();
+                mine = match.checksum();
+                done = true;
+            }
+
+            // inputs are sent until the end, others may still be missing some
+            int last = match.getFrame() - 1;
+            if (last >= 0) {
+                int first = Math.max(0, last - redundancy + 1);
+                out.clear();
+                out.put((byte) 'I').put((byte) player).putInt(first).put((byte) (last - first + 1));
+                for (int f = first; f <= last; ++f) {
+                    out.put((byte) lockstep.localInput(f).ordinal());
+                }
+                send(ch, out);
+            }
+            if (done) {
+                out.clear();
+                out.put((byte) 'C').put((byte) player).putInt(frames - 1).putLong(mine);
+                send(ch, out);
+
+                boolean all = true;
+                for (int p = 0; p < players; ++p) {
+                    all &= p == player || heard[p];
+                }
+                if (all) {
+                    break;
+                }
+            }
+        }
+
+        boolean same = true;
+        for (int p = 0; p < players; ++p) {
+            same &= p == player || checksums[p] == mine;
+        }
+        StringBuilder scores = new StringBuilder();
+        for (int p = 0; p < players; ++p) {
+            scores.append(p == 0 ? "" : "/").append(match.getEngine(p).getScore());
+        }
+
+        // keep answering for a moment in case the others missed our checksum
+        long until = System.nanoTime() + 500000000L;
+        while (System.nanoTime() - until < 0) {
+            send(ch, out);
+            LockSupport.parkNanos(frameNanos);
+        }
+        ch.close();
+        System.out.printf("player=%d frames=%d rollbacks=%d replayedFrames=%d stalls=%d lines=%s checksum=%016x %s%n",
+                player, frames, lockstep.getRollbacks(), lockstep.getReplayedFrames(), stalls, scores, mine,
+                same ? "in sync" : "DESYNC");
+    }
+
+    /**
+     * Sends a packet to every other peer
+     * @param ch socket
+     * @param out packet, flipped by this call
+     * @throws IOException if the socket fails
+     */
+    private void send(DatagramChannel ch, ByteBuffer out) throws IOException {
+        out.flip();
+        for (SocketAddress a : peers) {
+            out.rewind();
+            ch.send(out, a);
+        }
+        out.position(out.limit());
+    }
+
+    /**
+     * Reads command line options
+     * @param args options
+     */
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "-peers":
+                    for (String peer : args[++i].split(",")) {
+                        int colon = peer.lastIndexOf(':');
+                        peers.add(new InetSocketAddress(peer.substring(0, colon),
+                                Integer.parseInt(peer.substring(colon + 1))));
+                    }
+                    break;
+                case "-player":
+                    player = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "-frames":
+                    frames = Integer.parseInt(args[++i]);
+                    break;
+                case "-window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                case "-gravity":
+                    gravityFrames = Integer.parseInt(args[++i]);
+                    break;
+                case "-generator":
+                    generator = args[++i];
+                    PieceGenerator.checkKind(generator);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (peers.isEmpty() || player < 0 || player > peers.size() || frames < 1 || window < 1
+                || window > redundancy / 2 || gravityFrames < 1) {
+            throw new IllegalArgumentException("need peers, a player number within the match,"
+                    + " and positive frames, window up to " + redundancy / 2 + " and gravity");
+        }
+    }
+
+    /**
+     * Main method to play one side of a match
+     * @param args -port p -peers host:port,... -player i -seed s -frames n -window w -gravity g
+     *             -generator uniform|bag|history
+     * @throws IOException if the socket fails
+     */
+    public static void main(String[] args) throws IOException {
+        VersusPeer peer = new VersusPeer();
+        try {
+            peer.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: java tetris.VersusPeer -peers host:port[,host:port...] [-port p] [-player i]"
+                    + " [-seed s] [-frames n] [-window w] [-gravity g] [-generator uniform|bag|history]");
+            System.exit(1);
+        }
+        peer.run();
+    }
+}